@@ -0,0 +1,156 @@
+package org.gdmn.imagej.process;
+
+import ij.IJ;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import org.gdmn.imagej.utils.BatchCommand;
+import org.gdmn.imagej.utils.Defaults;
+import org.gdmn.imagej.utils.Filer;
+import org.gdmn.imagej.utils.Logger;
+import org.gdmn.imagej.utils.Profile;
+import org.scijava.Context;
+import org.scijava.command.CommandService;
+
+/**
+ * Headless entry point that runs a list of commands on a folder of images
+ * without the ImageJ user interface, for scheduled runs on compute nodes.
+ *
+ * <p>
+ * Usage: BatchRunner &lt;parent dir&gt; &lt;file pattern&gt; &lt;commands&gt;
+ * [profile], where the commands are a comma-separated list run in order (i.e.
+ * CleanChannels,CreateMask,CreateNuclearLabel) and the profile holds the
+ * parameters as saved from Run Pipeline. Parameters missing from the profile
+ * take their built-in defaults. Each command processes the images with
+ * the worker pool, and the process exits with 0 if every image succeeded, 1 if
+ * any image or command failed, and 2 if the arguments are invalid.
+ * </p>
+ */
+public class BatchRunner {
+    private static final int SUCCESS = 0;
+    private static final int FAILURE = 1;
+    private static final int USAGE = 2;
+    private static final Map<String, Supplier<BatchCommand>> COMMANDS = new LinkedHashMap<>();
+
+    static {
+        COMMANDS.put("CreateFolders", CreateFolders::new);
+        COMMANDS.put("CleanChannels", CleanChannels::new);
+        COMMANDS.put("CreateMask", CreateMask::new);
+        COMMANDS.put("CreateNuclearLabel", CreateNuclearLabel::new);
+        COMMANDS.put("SegmentLabel", SegmentLabel::new);
+        COMMANDS.put("SegmentSublayers", SegmentSublayers::new);
+        COMMANDS.put("Quantify", Quantify::new);
+        COMMANDS.put("Collate", Collate::new);
+        COMMANDS.put("RunPipeline", RunPipeline::new);
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs the commands given on the command line.
+     *
+     * @param args the parent directory, file pattern, command list and optional
+     *             profile.
+     * @return the exit status.
+     */
+    public static int run(String[] args) {
+        if (args.length < 3 || args.length > 4) {
+            System.err.println("Usage: BatchRunner <parent dir> <file pattern> <commands> [profile]");
+            System.err.println("Commands: " + String.join(",", COMMANDS.keySet()));
+            return USAGE;
+        }
+        String dir = args[0];
+        String pattern = args[1];
+
+        // Checking the arguments before running anything.
+        if (!Files.isDirectory(Paths.get(dir))) {
+            Logger.error("Parent directory not found: " + dir);
+            return USAGE;
+        }
+        List<String> commandNames = new ArrayList<>();
+        for (String name : args[2].split(",")) {
+            if (!COMMANDS.containsKey(name.trim())) {
+                Logger.error("Unknown command: " + name.trim() + " (expected one of "
+                        + String.join(",", COMMANDS.keySet()) + ")");
+                return USAGE;
+            }
+            commandNames.add(name.trim());
+        }
+        Defaults.setPersistent(false);
+        if (args.length == 4) {
+            try {
+                Profile.load(Paths.get(args[3]));
+            } catch (IOException e) {
+                Logger.error("Could not read profile " + args[3] + ": " + e.getMessage());
+                return USAGE;
+            }
+        }
+        List<Path> targetPaths = Filer.getBasePaths(dir, pattern, true);
+        if (targetPaths.isEmpty()) {
+            Logger.error("No images matching " + pattern + " found in " + dir);
+            return USAGE;
+        }
+
+        // Running each command over all images in turn.
+        int status = SUCCESS;
+        Context context = null;
+        try {
+            for (String name : commandNames) {
+                BatchCommand command = COMMANDS.get(name).get();
+                command.selectedDir = dir;
+                command.filePattern = pattern;
+                IJ.log("Running " + name + " on " + targetPaths.size() + " images.");
+                try {
+                    if (command instanceof CreateNuclearLabel || command instanceof RunPipeline) {
+                        if (context == null) {
+                            context = new Context();
+                        }
+                        CommandService commandService = context.service(CommandService.class);
+                        if (command instanceof CreateNuclearLabel) {
+                            ((CreateNuclearLabel) command).commandService = commandService;
+                        } else {
+                            ((RunPipeline) command).commandService = commandService;
+                        }
+                    }
+                    int numFailed = command.runBatch();
+                    if (numFailed > 0) {
+                        Logger.error(name + " failed on " + numFailed + " of " + targetPaths.size() + " images.");
+                        status = FAILURE;
+                    }
+                } catch (RuntimeException e) {
+                    Logger.error(name + " failed: " + e);
+                    status = FAILURE;
+                }
+            }
+        } finally {
+            if (context != null) {
+                context.dispose();
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Creates an instance of each command, with parameters from the current
+     * defaults.
+     *
+     * @return the commands, in pipeline order.
+     */
+    static List<BatchCommand> createCommands() {
+        List<BatchCommand> commands = new ArrayList<>();
+        for (Supplier<BatchCommand> supplier : COMMANDS.values()) {
+            commands.add(supplier.get());
+        }
+        return commands;
+    }
+
+}
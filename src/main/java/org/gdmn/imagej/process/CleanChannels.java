@@ -2,18 +2,23 @@ package org.gdmn.imagej.process;
 
 import ij.ImagePlus;
 import ij.plugin.ChannelSplitter;
-import ij.plugin.ImageCalculator;
+import ij.process.ByteProcessor;
 import ij.process.ImageConverter;
+import ij.process.ImageProcessor;
 import inra.ijpb.morphology.Morphology;
 import inra.ijpb.morphology.Strel;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import org.gdmn.imagej.utils.BatchCommand;
 import org.gdmn.imagej.utils.Defaults;
-import org.gdmn.imagej.utils.Filer;
+import org.gdmn.imagej.utils.ImageContext;
 import org.gdmn.imagej.utils.Logger;
+import org.gdmn.imagej.utils.TiledImage;
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
 import org.scijava.plugin.Menu;
@@ -31,53 +36,74 @@ import org.scijava.widget.NumberWidget;
         @Menu(label = "Clean Channels", weight = 21)
 })
 public class CleanChannels extends BatchCommand {
+    private static final int TILE_HALO = 6;
 
     @Parameter(visibility = ItemVisibility.MESSAGE)
     private String header = "<h2 style='width: 500px'>Clean channels</h2>";
 
-    @Parameter(label = "Channel 1", persist = false, choices = { "myo", "endo", "marker", "nuclei", "-" })
+    @Parameter(label = "Channel 1", persist = false, choices = { "myo", "endo", "marker", "marker2", "marker3", "nuclei", "-" })
     private String channel1 = Defaults.get("channel1", "myo");
 
-    @Parameter(label = "Channel 2", persist = false, choices = { "myo", "endo", "marker", "nuclei", "-" })
+    @Parameter(label = "Channel 2", persist = false, choices = { "myo", "endo", "marker", "marker2", "marker3", "nuclei", "-" })
     private String channel2 = Defaults.get("channel2", "endo");
 
-    @Parameter(label = "Channel 3", persist = false, choices = { "myo", "endo", "marker", "nuclei", "-" })
+    @Parameter(label = "Channel 3", persist = false, choices = { "myo", "endo", "marker", "marker2", "marker3", "nuclei", "-" })
     private String channel3 = Defaults.get("channel3", "marker");
 
-    @Parameter(label = "Channel 4", persist = false, choices = { "myo", "endo", "marker", "nuclei", "-" })
+    @Parameter(label = "Channel 4", persist = false, choices = { "myo", "endo", "marker", "marker2", "marker3", "nuclei", "-" })
     private String channel4 = Defaults.get("channel4", "nuclei");
 
     @Parameter(label = "Noise suppression", persist = false, style = NumberWidget.SLIDER_STYLE, min = "0", max = "10", stepSize = "0.1")
     private double crosstalkSuppression = 1;
 
+    @Parameter(label = "Preserve bit depth", persist = false)
+    private boolean preserveBitDepth = Boolean.parseBoolean(Defaults.get("preserveBitDepth", "false"));
+
+    @Parameter(label = "Tile size for large images (px, 0 = off)", persist = false, min = "0")
+    private int processingTileSize = Integer.parseInt(Defaults.get("processingTileSize", "0"));
+
     @Parameter(visibility = ItemVisibility.MESSAGE, persist = false)
     private String info = "<p style='width: 500px;'>"
             + "Increasing noise suppression will reduce the amount of crosstalk and/or noise from blood present in the image, "
-            + "but higher values will also result in loss of staining from the target channel.";
+            + "but higher values will also result in loss of staining from the target channel.<br><br>"
+            + "Preserving bit depth keeps 16-bit and 32-bit images at their native depth instead of converting them to 8-bit. "
+            + "Marker thresholds are then relative to the full range of the image type.<br><br>"
+            + "Setting a tile size streams very large images from disk tile by tile instead of opening them whole. "
+            + "This needs uncompressed TIFFs, such as those saved by ImageJ.";
 
     @Parameter(label = "Run", callback = "runAll")
     private Button runButton;
 
-    public void process(String basePath) {
+    public void process(ImageContext context) {
         String[] channels = { this.channel1, this.channel2, this.channel3, this.channel4 };
-        this.cleanChannels(basePath, "roi.tif", channels, this.crosstalkSuppression);
+        if (this.processingTileSize > 0) {
+            try {
+                this.cleanChannelsTiled(context, "roi.tif", channels, this.crosstalkSuppression);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            this.cleanChannels(context, "roi.tif", channels, this.crosstalkSuppression);
+        }
     }
 
     /**
      * Splits a fluorescence image into cleaned output channels.
      *
-     * @param basePath             the path to the image folder.
+     * @param context              the context of the image folder.
      * @param roiName              the name of the image file.
      * @param channelNames         an array of the channel names.
      * @param crosstalkSuppression the degree of crosstalk suppression to use.
      */
-    private void cleanChannels(String basePath, String roiName, String[] channelNames, double crosstalkSuppression) {
+    private void cleanChannels(ImageContext context, String roiName, String[] channelNames, double crosstalkSuppression) {
 
         // Opening image and converting to grayscale.
-        String roiPath = Paths.get(basePath, roiName).toString();
-        ImagePlus imp = new ImagePlus(roiPath);
-        ImageConverter ic = new ImageConverter(imp);
-        ic.convertToGray8();
+        String roiPath = Paths.get(context.getBasePath(), roiName).toString();
+        ImagePlus imp = context.openImage("", roiName);
+        if (!this.preserveBitDepth || (imp.getBitDepth() != 16 && imp.getBitDepth() != 32)) {
+            ImageConverter ic = new ImageConverter(imp);
+            ic.convertToGray8();
+        }
 
         // Checking for channel number.
         int numChannels = imp.getNChannels();
@@ -93,66 +119,264 @@ public class CleanChannels extends BatchCommand {
         List<String> channels = new ArrayList<>(Arrays.asList(channelNames));
         final int myoIndex = channels.indexOf("myo");
         final int endoIndex = channels.indexOf("endo");
-        final int markerIndex = channels.indexOf("marker");
         final int nucleiIndex = channels.indexOf("nuclei");
         imp.close();
 
         // Assigning channels to ImagePlus objects.
         ImagePlus myoImp = (myoIndex >= 0) ? imps[myoIndex] : null;
         ImagePlus endoImp = (endoIndex >= 0) ? imps[endoIndex] : null;
-        ImagePlus markerImp = (markerIndex >= 0) ? imps[markerIndex] : null;
         ImagePlus nucleiImp = (nucleiIndex >= 0) ? imps[nucleiIndex] : null;
 
-        // Cleaning nuclear channel.
+        // Cleaning nuclear channel in place.
         if (nucleiImp != null) {
             if (myoImp != null) {
-                nucleiImp = passClean(nucleiImp, myoImp);
+                passClean(nucleiImp, myoImp);
             }
             if (endoImp != null) {
-                nucleiImp = passClean(nucleiImp, endoImp);
+                passClean(nucleiImp, endoImp);
             }
-            Filer.save(nucleiImp, basePath, "channels", "nuclei.tif");
+            context.saveImage(nucleiImp, "channels", "nuclei.tif");
             nucleiImp.close();
         }
 
-        // Cleaning myo and endo channels.
+        // Cleaning myo and endo channels in place.
         if (myoImp != null && endoImp != null) {
-            ImagePlus endoSuppressed = endoImp.duplicate();
-            endoSuppressed.getProcessor().multiply(crosstalkSuppression);
-            ImagePlus cleanedMyo = ImageCalculator.run(myoImp, endoSuppressed, "subtract create");
-            Filer.save(cleanedMyo, basePath, "channels", "myo.tif");
-            endoSuppressed.close();
-            cleanedMyo.close();
-            ImagePlus cleanedEndo = ImageCalculator.run(endoImp, myoImp, "subtract create");
-            Filer.save(cleanedEndo, basePath, "channels", "endo.tif");
+            crossClean(myoImp, endoImp, crosstalkSuppression);
+            context.saveImage(myoImp, "channels", "myo.tif");
+            context.saveImage(endoImp, "channels", "endo.tif");
             myoImp.close();
             endoImp.close();
-            cleanedEndo.close();
         }
 
-        // Saving marker channel.
-        if (markerImp != null) {
-            Filer.save(markerImp, basePath, "channels", "marker.tif");
-            markerImp.close();
+        // Saving marker channels.
+        for (int i = 0; i < channels.size(); i++) {
+            String channel = channels.get(i);
+            if (channel.startsWith("marker") && i < imps.length) {
+                context.saveImage(imps[i], "channels", channel + ".tif");
+                imps[i].close();
+            }
         }
     }
 
     /**
-     * Cleans crosstalk from an image by performing a double-pass clean.
+     * Splits a fluorescence image into cleaned output channels, streaming it
+     * from disk one tile at a time. Each tile is read with a halo wide enough
+     * for the two dilations of the nuclear clean, so the output matches the
+     * whole-image clean. 16-bit and 32-bit images are scaled to 8-bit over the
+     * display range of each channel unless the bit depth is preserved.
      *
-     * @param baseImage the image to be cleaned.
+     * @param context              the context of the image folder.
+     * @param roiName              the name of the image file.
+     * @param channelNames         an array of the channel names.
+     * @param crosstalkSuppression the degree of crosstalk suppression to use.
+     * @throws IOException if the image cannot be read or the channels written.
+     */
+    private void cleanChannelsTiled(ImageContext context, String roiName, String[] channelNames,
+            double crosstalkSuppression) throws IOException {
+        try (TiledImage source = TiledImage.open(context.getInputPath("", roiName))) {
+            // Checking for channel number.
+            int numChannels = source.getNumPlanes();
+            if (numChannels < 4 && !channelNames[3].equals("-")) {
+                Logger.warn("Only " + numChannels + " channels found for image "
+                        + Paths.get(context.getBasePath(), roiName));
+                for (int i = numChannels; i < channelNames.length; i++) {
+                    channelNames[i] = "-";
+                }
+            }
+            List<String> channels = new ArrayList<>(Arrays.asList(channelNames));
+            final int myoIndex = channels.indexOf("myo");
+            final int endoIndex = channels.indexOf("endo");
+            final int nucleiIndex = channels.indexOf("nuclei");
+            boolean crossCleaned = myoIndex >= 0 && endoIndex >= 0;
+
+            // Getting the display range of each channel when converting to 8-bit,
+            // falling back to the full range of pixel values if none was saved.
+            boolean convert = source.getBitDepth() != 8 && !this.preserveBitDepth;
+            double[] mins = new double[channels.size()];
+            double[] maxs = new double[channels.size()];
+            if (convert) {
+                Arrays.fill(mins, Double.POSITIVE_INFINITY);
+                Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+                for (int c = 0; c < numChannels && c < channels.size(); c++) {
+                    double[] range = source.getDisplayRange(c);
+                    if (range != null) {
+                        mins[c] = range[0];
+                        maxs[c] = range[1];
+                    }
+                }
+                for (Rectangle tile : source.getTiles(this.processingTileSize)) {
+                    for (int c = 0; c < numChannels && c < channels.size(); c++) {
+                        if (source.getDisplayRange(c) == null) {
+                            ImageProcessor ip = source.read(c, tile);
+                            ip.resetMinAndMax();
+                            mins[c] = Math.min(mins[c], ip.getMin());
+                            maxs[c] = Math.max(maxs[c], ip.getMax());
+                        }
+                    }
+                }
+            }
+
+            // Creating the output channels that the whole-image clean would save.
+            TiledImage[] outputs = new TiledImage[channels.size()];
+            int bitDepth = convert ? 8 : source.getBitDepth();
+            for (int c = 0; c < channels.size(); c++) {
+                String channel = channels.get(c);
+                if (c == nucleiIndex || channel.startsWith("marker") || (crossCleaned && (c == myoIndex || c == endoIndex))) {
+                    outputs[c] = TiledImage.create(context.getOutputPath("channels", channel + ".tif"),
+                            source.getWidth(), source.getHeight(), bitDepth, source.getCalibration(), null);
+                }
+            }
+
+            try {
+                for (Rectangle tile : source.getTiles(this.processingTileSize)) {
+                    // Reading the tile and its halo from each channel.
+                    Rectangle expanded = source.expand(tile, TILE_HALO);
+                    ImagePlus[] imps = new ImagePlus[channels.size()];
+                    for (int c = 0; c < numChannels && c < channels.size(); c++) {
+                        if (!channels.get(c).equals("-")) {
+                            ImageProcessor ip = source.read(c, expanded);
+                            if (convert) {
+                                ip.setMinAndMax(mins[c], maxs[c]);
+                                ip = ip.convertToByteProcessor(true);
+                            }
+                            imps[c] = new ImagePlus(channels.get(c), ip);
+                        }
+                    }
+
+                    // Cleaning the tile as for the whole image.
+                    if (nucleiIndex >= 0) {
+                        if (myoIndex >= 0) {
+                            passClean(imps[nucleiIndex], imps[myoIndex]);
+                        }
+                        if (endoIndex >= 0) {
+                            passClean(imps[nucleiIndex], imps[endoIndex]);
+                        }
+                    }
+                    if (crossCleaned) {
+                        crossClean(imps[myoIndex], imps[endoIndex], crosstalkSuppression);
+                    }
+
+                    // Writing the tile without its halo.
+                    Rectangle inner = new Rectangle(tile.x - expanded.x, tile.y - expanded.y, tile.width, tile.height);
+                    for (int c = 0; c < outputs.length; c++) {
+                        if (outputs[c] != null) {
+                            outputs[c].write(imps[c].getProcessor(), inner, tile.x, tile.y);
+                        }
+                    }
+                }
+            } finally {
+                for (TiledImage output : outputs) {
+                    if (output != null) {
+                        output.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Cleans crosstalk from an image by performing a double-pass clean. The
+     * pass image is dulled by the dilated base image, halved and subtracted
+     * from the base image in a single pass over the pixels.
+     *
+     * @param baseImage the image to be cleaned, which is modified in place.
      * @param passImage the image to filter crosstalk from.
-     * @return the cleaned image.
      */
-    private ImagePlus passClean(ImagePlus baseImage, ImagePlus passImage) {
-        ImagePlus dilationImage = baseImage.duplicate();
-        dilationImage.setProcessor(Morphology.dilation(dilationImage.getProcessor(), Strel.Shape.DISK.fromRadius(2)));
-        ImagePlus dulledPasser = ImageCalculator.run(passImage, dilationImage, "subtract create");
-        dulledPasser.getProcessor().multiply(0.5);
-        ImagePlus cleanedImage = ImageCalculator.run(baseImage, dulledPasser, "subtract");
-        dilationImage.close();
-        dulledPasser.close();
-        return cleanedImage;
+    private static void passClean(ImagePlus baseImage, ImagePlus passImage) {
+        ImageProcessor baseIp = baseImage.getProcessor();
+        Object dilated = Morphology.dilation(baseIp, Strel.Shape.DISK.fromRadius(2)).getPixels();
+        Object base = baseIp.getPixels();
+        Object pass = passImage.getProcessor().getPixels();
+        if (base instanceof byte[]) {
+            byte[] basePixels = (byte[]) base;
+            byte[] passPixels = (byte[]) pass;
+            byte[] dilatedPixels = (byte[]) dilated;
+            int[] halved = multiplyTable(0.5);
+            for (int i = 0; i < basePixels.length; i++) {
+                int dulled = Math.max(0, (passPixels[i] & 0xff) - (dilatedPixels[i] & 0xff));
+                basePixels[i] = (byte) Math.max(0, (basePixels[i] & 0xff) - halved[dulled]);
+            }
+        } else if (base instanceof short[]) {
+            short[] basePixels = (short[]) base;
+            short[] passPixels = (short[]) pass;
+            short[] dilatedPixels = (short[]) dilated;
+            for (int i = 0; i < basePixels.length; i++) {
+                int dulled = Math.max(0, (passPixels[i] & 0xffff) - (dilatedPixels[i] & 0xffff));
+                basePixels[i] = (short) Math.max(0, (basePixels[i] & 0xffff) - ((dulled + 1) >> 1));
+            }
+        } else {
+            float[] basePixels = (float[]) base;
+            float[] passPixels = (float[]) pass;
+            float[] dilatedPixels = (float[]) dilated;
+            for (int i = 0; i < basePixels.length; i++) {
+                float dulled = Math.max(0, passPixels[i] - dilatedPixels[i]);
+                basePixels[i] = Math.max(0, basePixels[i] - dulled * 0.5f);
+            }
+        }
+    }
+
+    /**
+     * Removes crosstalk between the myo and endo channels in a single pass,
+     * subtracting the suppressed endo channel from myo and myo from endo.
+     *
+     * @param myoImage             the myo channel, which is modified in place.
+     * @param endoImage            the endo channel, which is modified in place.
+     * @param crosstalkSuppression the degree of crosstalk suppression to use.
+     */
+    private static void crossClean(ImagePlus myoImage, ImagePlus endoImage, double crosstalkSuppression) {
+        Object myo = myoImage.getProcessor().getPixels();
+        Object endo = endoImage.getProcessor().getPixels();
+        if (myo instanceof byte[]) {
+            byte[] myoPixels = (byte[]) myo;
+            byte[] endoPixels = (byte[]) endo;
+            int[] suppressed = multiplyTable(crosstalkSuppression);
+            for (int i = 0; i < myoPixels.length; i++) {
+                int myoValue = myoPixels[i] & 0xff;
+                int endoValue = endoPixels[i] & 0xff;
+                myoPixels[i] = (byte) Math.max(0, myoValue - suppressed[endoValue]);
+                endoPixels[i] = (byte) Math.max(0, endoValue - myoValue);
+            }
+        } else if (myo instanceof short[]) {
+            short[] myoPixels = (short[]) myo;
+            short[] endoPixels = (short[]) endo;
+            for (int i = 0; i < myoPixels.length; i++) {
+                int myoValue = myoPixels[i] & 0xffff;
+                int endoValue = endoPixels[i] & 0xffff;
+                int suppressed = (int) Math.min(65535, Math.round(endoValue * crosstalkSuppression));
+                myoPixels[i] = (short) Math.max(0, myoValue - suppressed);
+                endoPixels[i] = (short) Math.max(0, endoValue - myoValue);
+            }
+        } else {
+            float[] myoPixels = (float[]) myo;
+            float[] endoPixels = (float[]) endo;
+            float suppression = (float) crosstalkSuppression;
+            for (int i = 0; i < myoPixels.length; i++) {
+                float myoValue = myoPixels[i];
+                float endoValue = endoPixels[i];
+                myoPixels[i] = Math.max(0, myoValue - endoValue * suppression);
+                endoPixels[i] = Math.max(0, endoValue - myoValue);
+            }
+        }
+    }
+
+    /**
+     * Gets the result of ImageProcessor.multiply for every 8-bit value, so
+     * that the fused kernels round and clamp exactly as ImageJ does.
+     *
+     * @param factor the multiplication factor.
+     * @return the multiplied values, indexed by input value.
+     */
+    private static int[] multiplyTable(double factor) {
+        ByteProcessor ip = new ByteProcessor(256, 1);
+        for (int i = 0; i < 256; i++) {
+            ip.set(i, i);
+        }
+        ip.multiply(factor);
+        int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            table[i] = ip.get(i);
+        }
+        return table;
     }
 
 }
@@ -1,17 +1,21 @@
 package org.gdmn.imagej.process;
 
-import ij.IJ;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.gdmn.imagej.utils.BatchCommand;
-import org.gdmn.imagej.utils.Defaults;
-import org.gdmn.imagej.utils.Filer;
+import org.gdmn.imagej.utils.ImageContext;
 import org.gdmn.imagej.utils.Logger;
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
@@ -28,6 +32,8 @@ import org.scijava.widget.Button;
         @Menu(label = "Collate Data", weight = 28)
 })
 public class Collate extends BatchCommand {
+    private static final String TITLE = "Type,Stage,Group,Embryo,Region,Image";
+    private static final int MAX_PENDING = 256;
 
     @Parameter(visibility = ItemVisibility.MESSAGE)
     private String header = "<h2 style='width: 500px'>Collate data to CSV</h2>";
@@ -35,73 +41,159 @@ public class Collate extends BatchCommand {
     @Parameter(label = "Run", callback = "runAll")
     private Button runButton;
 
-    private String headers;
-    private String output;
+    private final Map<String, Integer> columns = new LinkedHashMap<>();
+    private final Map<Integer, Row> pending = new HashMap<>();
+    private BufferedWriter rowWriter;
+    private int nextIndex;
 
-    /** Extracts and saves quantifications. */
-    public void process(String basePath) {
+    /** A parsed data.txt, or a failed read if values is null. */
+    private static class Row {
+        private final String location;
+        private final Map<String, String> values;
+
+        Row(String location, Map<String, String> values) {
+            this.location = location;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Reads the quantifications of an image folder and queues them for writing.
+     * A folder whose data cannot be read is written as a SKIPPED row and
+     * counted as failed.
+     */
+    public void process(ImageContext context) {
+        String basePath = context.getBasePath();
+        Row row = new Row(basePath, null);
         try {
             // Getting filepath array.
-            String[] filePath = basePath.substring(this.selectedDir.length()).split("[\\\\/]");
-            String title = "Type,Stage,Group,Embryo,Region,Image";
-
-            // Reading content from data.txts.
-            String content = new String(Files.readAllBytes(Paths.get(basePath, "data.txt")), StandardCharsets.UTF_8);
-            String[] lines = content.split("\n");
-            String headings = title + "," + String.join(",",
-                    Arrays.stream(lines).map(line -> line.split("=")[0]).toArray(String[]::new));
-            String data = String.join(",", filePath) + "," + String.join(",",
-                    Arrays.stream(lines).map(line -> {
-                        String l = line.split("=")[1];
-                        return l.substring(0, l.length() - 1);
-                    }).toArray(String[]::new));
-
-            // If first file then update headings.
-            if (this.output == null) {
-                this.output = headings + "\n";
-                this.headers = headings;
-            }
+            String location = String.join(",", basePath.substring(this.selectedDir.length()).split("[\\\\/]"));
 
-            // If headings match, add to output.
-            if (this.headers.equals(headings)) {
-                this.output = this.output + data + "\n";
-            } else {
-                IJ.log("SKIPPED: different headings found for image at " + basePath);
-                this.output = this.output + "SKIPPED: different headings found for image at " + basePath + "\n";
+            // Reading content from data.txt.
+            Map<String, String> values = new LinkedHashMap<>();
+            for (String line : Files.readAllLines(Paths.get(basePath, "data.txt"), StandardCharsets.UTF_8)) {
+                int split = line.indexOf("=");
+                if (split > 0) {
+                    values.put(line.substring(0, split), line.substring(split + 1).trim());
+                }
             }
-        } catch (Exception e) {
-            IJ.log(e.getMessage());
+            row = new Row(location, values);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read data.txt: " + e.getMessage(), e);
+        } finally {
+            this.queue(context.getIndex(), row);
         }
     }
 
     @Override
-    public void runAll() {
-        Defaults.set("dir", this.selectedDir);
-        Defaults.set("filePattern", this.filePattern);
-
-        BatchCommand self = this;
-        Logger.logProcess(self);
-
-        List<Path> basePaths = new ArrayList<Path>();
-        Filer.getBasePaths(this.selectedDir, this.filePattern)
-                .forEach(path -> basePaths.add(path));
-        int n = basePaths.size();
-        for (int i = 0; i < n; i++) {
-            IJ.showStatus("!Processing image " + (i + 1) + " of " + n + ".");
-            String basePath = basePaths.get(i).getParent().toString();
-            process(basePath);
+    public boolean isIncremental() {
+        return false;
+    }
+
+    /**
+     * Collates data.txt files into Data.csv. Rows are streamed to a temporary
+     * file in image order as they are read, and the header is written once the
+     * union of all columns is known.
+     */
+    @Override
+    public void execute(List<Path> targetPaths) {
+        Path rowsPath = Paths.get(this.selectedDir, "Data.csv.tmp");
+        Path outputPath = Paths.get(this.selectedDir, "Data.csv");
+        this.columns.clear();
+        this.pending.clear();
+        this.nextIndex = 0;
+
+        try {
+            // Reading folders in parallel and streaming rows in order.
+            try (BufferedWriter writer = Files.newBufferedWriter(rowsPath, StandardCharsets.UTF_8)) {
+                this.rowWriter = writer;
+                List<Path> sortedPaths = new ArrayList<>(targetPaths);
+                Collections.sort(sortedPaths);
+                super.execute(sortedPaths);
+            }
+
+            // Writing header then rows, padded to the full set of columns.
+            int numColumns = this.columns.size();
+            try (BufferedReader reader = Files.newBufferedReader(rowsPath, StandardCharsets.UTF_8);
+                    BufferedWriter writer = Files.newBufferedWriter(outputPath, StandardCharsets.UTF_8)) {
+                writer.write(TITLE);
+                for (String column : this.columns.keySet()) {
+                    writer.write("," + column);
+                }
+                writer.newLine();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int split = line.indexOf("\t");
+                    writer.write(line, split + 1, line.length() - split - 1);
+                    int known = split == 0 ? numColumns : Integer.parseInt(line.substring(0, split));
+                    for (int i = known; i < numColumns; i++) {
+                        writer.write(",");
+                    }
+                    writer.newLine();
+                }
+            }
+            Files.delete(rowsPath);
+        } catch (IOException e) {
+            Logger.error("Could not write " + outputPath + ": " + e.getMessage());
+        } finally {
+            this.rowWriter = null;
         }
+    }
+
+    /**
+     * Queues a row and writes every row that is now next in image order.
+     * Workers that run more than MAX_PENDING images ahead of the next row wait
+     * for it, so that the queue stays bounded when one folder is slow.
+     *
+     * @param index the index of the image.
+     * @param row   the parsed row.
+     */
+    private synchronized void queue(int index, Row row) {
+        while (index >= this.nextIndex + MAX_PENDING) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        this.pending.put(index, row);
+        while (this.pending.containsKey(this.nextIndex)) {
+            Row next = this.pending.remove(this.nextIndex);
+            this.nextIndex++;
+            this.write(next);
+        }
+        this.notifyAll();
+    }
+
+    private void write(Row row) {
+        if (row.values == null) {
+            // Writing failed folders as is, without padding.
+            this.writeLine("\tSKIPPED: could not read data for image at " + row.location);
+            return;
+        }
+        for (String key : row.values.keySet()) {
+            this.columns.putIfAbsent(key, this.columns.size());
+        }
+        String[] cells = new String[this.columns.size()];
+        row.values.forEach((key, value) -> cells[this.columns.get(key)] = value);
+
+        // Prefixing the number of columns known when the row was written.
+        StringBuilder line = new StringBuilder();
+        line.append(cells.length).append("\t").append(row.location);
+        for (String cell : cells) {
+            line.append(",").append(cell == null ? "" : cell);
+        }
+        this.writeLine(line.toString());
+    }
+
+    private void writeLine(String line) {
         try {
-            Files.write(
-                    Paths.get(this.selectedDir, "Data.csv"),
-                    this.output.getBytes(StandardCharsets.UTF_8),
-                    StandardOpenOption.CREATE,
-                    StandardOpenOption.TRUNCATE_EXISTING);
-
-        } catch (Exception e) {
-            IJ.log(e.getMessage());
+            this.rowWriter.write(line);
+            this.rowWriter.newLine();
+        } catch (IOException e) {
+            Logger.error("Could not write row " + line.substring(line.indexOf("\t") + 1) + ": " + e.getMessage());
         }
-        IJ.showStatus("!Command finished: " + this.getClass().getSimpleName() + " on n=" + n + " images.");
     }
 
-}
\ No newline at end of file
+}
@@ -5,6 +5,7 @@ import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import org.gdmn.imagej.utils.BatchCommand;
+import org.gdmn.imagej.utils.ImageContext;
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
 import org.scijava.plugin.Menu;
@@ -36,11 +37,12 @@ public class CreateFolders extends BatchCommand {
     private Button runButton;
 
     /** Builds a folder hierarchy based on the images present. */
-    public void process(String basePath) {
+    public void process(ImageContext context) {
 
         // Getting delimited URI and building path.
         String currentDir = "";
-        String filePath = this.filePath.substring(0, this.filePath.lastIndexOf("."));
+        String imagePath = context.getFilePath();
+        String filePath = imagePath.substring(0, imagePath.lastIndexOf("."));
         String[] dirPath = filePath.split("-");
         for (int i = 0; i < dirPath.length; i++) {
             currentDir = Paths.get(currentDir, dirPath[i]).toString();
@@ -52,8 +54,8 @@ public class CreateFolders extends BatchCommand {
 
         // Copying files and deleting.
         try {
-            Files.copy(Paths.get(this.filePath), Paths.get(currentDir, "Image.tif"));
-            Files.delete(Paths.get(this.filePath));
+            Files.copy(Paths.get(imagePath), Paths.get(currentDir, "Image.tif"));
+            Files.delete(Paths.get(imagePath));
         } catch (Exception e) {
             IJ.log(e.getMessage());
         }
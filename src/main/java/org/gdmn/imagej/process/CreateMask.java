@@ -3,14 +3,30 @@ package org.gdmn.imagej.process;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
+import ij.plugin.RoiScaler;
 import ij.plugin.filter.RankFilters;
 import ij.plugin.filter.ThresholdToSelection;
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import inra.ijpb.morphology.Morphology;
 import inra.ijpb.morphology.Strel;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.gdmn.imagej.utils.BatchCommand;
 import org.gdmn.imagej.utils.Defaults;
 import org.gdmn.imagej.utils.Filer;
+import org.gdmn.imagej.utils.ImageContext;
+import org.gdmn.imagej.utils.Logger;
+import org.gdmn.imagej.utils.TiledImage;
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
 import org.scijava.plugin.Menu;
@@ -26,8 +42,17 @@ import org.scijava.widget.Button;
         @Menu(label = "Create Masks", weight = 22)
 })
 public class CreateMask extends BatchCommand {
+    private static final int NUM_BINS = 256;
+    private static final int PREVIEW_SIZE = 1024;
+
     private ImagePlus channelImp;
     private ImagePlus maskImp;
+    private String previewDir;
+    private String previewChannel;
+    private ImageProcessor previewSource;
+    private ImageProcessor previewLevel;
+    private ExecutorService previewExecutor;
+    private final AtomicInteger previewGeneration = new AtomicInteger();
 
     @Parameter(visibility = ItemVisibility.MESSAGE)
     private String header = "<h2 style='width: 500px'>Create tissue masks</h2>";
@@ -44,12 +69,22 @@ public class CreateMask extends BatchCommand {
     @Parameter(label = "Closing radius:", callback = "updatePreview")
     private int closingRadius = Integer.parseInt(Defaults.get("closingRadius", "2"));
 
+    @Parameter(label = "Tile size for large images (px, 0 = off)", min = "0")
+    private int processingTileSize = Integer.parseInt(Defaults.get("processingTileSize", "0"));
+
     @Parameter(label = "Show preview:", callback = "showPreview")
     private boolean showPreview = false;
 
     @Parameter(label = "Run", callback = "runAll")
     private Button runButton;
 
+    @Override
+    public Map<String, String> getParameters() {
+        Map<String, String> parameters = super.getParameters();
+        parameters.remove("showPreview");
+        return parameters;
+    }
+
     /**
      * Shows a preview of the thresholded marker image.
      */
@@ -57,11 +92,12 @@ public class CreateMask extends BatchCommand {
         if (this.showPreview) {
 
             // Getting preview image.
-            String previewDir = Filer.getBasePaths(this.selectedDir, this.filePattern).get(0).getParent().toString();
+            this.previewDir = Filer.getBasePaths(this.selectedDir, this.filePattern).get(0).getParent().toString();
 
             // Opening ROI Manager and images.
-            this.channelImp = new ImagePlus(Filer.getPath(previewDir, "channels", this.channelType + ".tif"));
-            this.maskImp = new ImagePlus(Filer.getPath(previewDir, "channels", this.channelType + ".tif"));
+            this.channelImp = Filer.openImage(this.previewDir, "channels", this.channelType + ".tif", true);
+            this.maskImp = Filer.openImage(this.previewDir, "channels", this.channelType + ".tif", true);
+            this.previewChannel = null;
 
             // Getting image dimensions.
             double screenWidth = IJ.getScreenSize().getWidth();
@@ -85,6 +121,11 @@ public class CreateMask extends BatchCommand {
     }
 
     private void closePreview() {
+        this.previewGeneration.incrementAndGet();
+        if (this.previewExecutor != null) {
+            this.previewExecutor.shutdown();
+            this.previewExecutor = null;
+        }
         if (this.channelImp != null) {
             this.channelImp.close();
         }
@@ -94,62 +135,169 @@ public class CreateMask extends BatchCommand {
     }
 
     /**
-     * Updates the preview image.
+     * Updates the preview image. The mask is computed in the background, first
+     * on a downsampled copy of the channel with scaled radii and then at full
+     * resolution. Moving a slider again cancels any preview still running.
      */
     public void updatePreview() {
         if (this.channelImp != null && this.channelImp.isVisible() && this.maskImp.isVisible()) {
-            String previewDir = Filer.getBasePaths(this.selectedDir, this.filePattern).get(0).getParent().toString();
-            this.channelImp.setImage(new ImagePlus(Filer.getPath(previewDir, "channels", this.channelType + ".tif")));
-            this.channelImp.killRoi();
-            this.maskImp.killRoi();
-            this.maskImp.setImage(this.channelImp);
-
-            // Preview code.
-            ImageProcessor ip = this.maskImp.getProcessor();
-
-            // Applying transforms.
-            ip.multiply(multiplier);
-            new RankFilters().rank(ip, medianRadius, RankFilters.MEDIAN);
-            ip = Morphology.closing(ip, Strel.Shape.DISK.fromRadius(closingRadius));
-            ip.autoThreshold();
-            this.maskImp.setProcessor(ip);
+            // Reloading the channel and its downsampled copy when the channel changes.
+            if (!this.channelType.equals(this.previewChannel)) {
+                this.channelImp.setImage(Filer.openImage(this.previewDir, "channels", this.channelType + ".tif", true));
+                this.channelImp.killRoi();
+                this.previewSource = this.channelImp.getProcessor().duplicate();
+                int width = this.previewSource.getWidth();
+                int height = this.previewSource.getHeight();
+                int factor = (Math.max(width, height) + PREVIEW_SIZE - 1) / PREVIEW_SIZE;
+                this.previewLevel = factor > 1
+                        ? this.previewSource.resize(Math.max(1, width / factor), Math.max(1, height / factor), true)
+                        : null;
+                this.previewChannel = this.channelType;
+            }
+
+            // Queuing the preview, leaving older ones to stop at their next step.
+            int generation = this.previewGeneration.incrementAndGet();
+            ImageProcessor source = this.previewSource;
+            ImageProcessor level = this.previewLevel;
+            double multiplier = this.multiplier;
+            double medianRadius = this.medianRadius;
+            int closingRadius = this.closingRadius;
+            if (this.previewExecutor == null) {
+                this.previewExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "Create Masks preview");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            this.previewExecutor.execute(() -> {
+                try {
+                    if (level != null) {
+                        double scale = (double) source.getWidth() / level.getWidth();
+                        this.showPreviewMask(generation, this.createPreviewMask(generation, level, multiplier,
+                                medianRadius / scale, (int) Math.round(closingRadius / scale)));
+                    }
+                    this.showPreviewMask(generation,
+                            this.createPreviewMask(generation, source, multiplier, medianRadius, closingRadius));
+                } catch (RuntimeException e) {
+                    Logger.warn("Could not update preview: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates a preview mask, giving up as soon as a newer preview is queued.
+     *
+     * @param generation    the preview this mask belongs to.
+     * @param source        the channel, which is left unchanged.
+     * @param multiplier    the degree of amplification.
+     * @param medianRadius  the radius to apply for the median filter.
+     * @param closingRadius the radius to apply for the closing filter.
+     * @return the mask, or null if the preview is stale.
+     */
+    private ImageProcessor createPreviewMask(int generation, ImageProcessor source, double multiplier,
+            double medianRadius, int closingRadius) {
+        if (this.isStale(generation)) {
+            return null;
+        }
+        ImageProcessor ip = source.duplicate();
+        ip.multiply(multiplier);
+        new RankFilters().rank(ip, medianRadius, RankFilters.MEDIAN);
+        if (this.isStale(generation)) {
+            return null;
+        }
+        ip = Morphology.closing(ip, Strel.Shape.DISK.fromRadius(closingRadius));
+        if (this.isStale(generation)) {
+            return null;
+        }
+        return autoThreshold(ip);
+    }
+
+    /**
+     * Shows a preview mask and its selection, scaling both up to the channel.
+     *
+     * @param generation the preview this mask belongs to.
+     * @param mask       the mask, or null if the preview is stale.
+     */
+    private synchronized void showPreviewMask(int generation, ImageProcessor mask) {
+        if (mask == null || this.isStale(generation) || !this.maskImp.isVisible()) {
+            return;
+        }
 
-            // Setting threshold and creating selection.
-            ip.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
-            Roi roi = ThresholdToSelection.run(this.maskImp);
-            this.maskImp.setRoi(roi);
-            this.channelImp.setRoi(roi);
-            this.maskImp.updateAndDraw();
+        // Setting threshold and creating selection.
+        mask.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+        Roi roi = ThresholdToSelection.run(new ImagePlus("", mask));
+        mask.resetThreshold();
+        int width = this.channelImp.getWidth();
+        int height = this.channelImp.getHeight();
+        if (mask.getWidth() != width || mask.getHeight() != height) {
+            if (roi != null) {
+                roi = RoiScaler.scale(roi, (double) width / mask.getWidth(), (double) height / mask.getHeight(), false);
+            }
+            mask.setInterpolationMethod(ImageProcessor.NONE);
+            mask = mask.resize(width, height);
         }
+        this.maskImp.setProcessor(mask);
+        this.maskImp.setRoi(roi);
+        this.channelImp.setRoi(roi);
+        this.maskImp.updateAndDraw();
     }
 
-    public void process(String basePath) {
+    private boolean isStale(int generation) {
+        return generation != this.previewGeneration.get();
+    }
+
+    /**
+     * Closes the preview once before the images are dispatched to the workers.
+     */
+    @Override
+    public void execute(List<Path> targetPaths) {
         this.closePreview();
-        this.createMask(basePath, this.channelType, this.multiplier, this.medianRadius, this.closingRadius);
+        super.execute(targetPaths);
+    }
+
+    public void process(ImageContext context) {
+        this.createMask(context, this.channelType, this.multiplier, this.medianRadius, this.closingRadius);
+    }
+
+    /**
+     * Creates a mask for a channel using the current parameters.
+     *
+     * @param context the context of the image folder.
+     * @param channel the name of the channel to create a mask from.
+     */
+    void createMask(ImageContext context, String channel) {
+        this.createMask(context, channel, this.multiplier, this.medianRadius, this.closingRadius);
     }
 
     /**
      * Creates a mask from a fluorescence image (single-channel).
      *
-     * @param basePath      the path to the image folder.
+     * @param context       the context of the image folder.
      * @param channel       the name of the channel to create a mask from.
      * @param multiplier    the degree of amplification.
      * @param meadianRadius the radius to apply for the median filter.
      * @param closingRadius the radius to apply for the closing filter.
      */
-    private void createMask(String basePath, String channel, double multiplier, double medianRadius,
+    private void createMask(ImageContext context, String channel, double multiplier, double medianRadius,
             int closingRadius) {
+        if (this.processingTileSize > 0) {
+            try {
+                this.createMaskTiled(context, channel, multiplier, medianRadius, closingRadius);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
 
         // Opening image and getting processor.
-        String imagePath = Filer.getPath(basePath, "channels", channel + ".tif");
-        ImagePlus imp = new ImagePlus(imagePath);
+        ImagePlus imp = context.openImage("channels", channel + ".tif");
         ImageProcessor ip = imp.getProcessor();
 
         // Applying transforms.
         ip.multiply(multiplier);
         new RankFilters().rank(ip, medianRadius, RankFilters.MEDIAN);
-        ip = Morphology.closing(ip, Strel.Shape.DISK.fromRadius(closingRadius));
-        ip.autoThreshold();
+        ip = autoThreshold(Morphology.closing(ip, Strel.Shape.DISK.fromRadius(closingRadius)));
         imp.setProcessor(ip);
 
         // Setting threshold and creating selection.
@@ -158,8 +306,135 @@ public class CreateMask extends BatchCommand {
         imp.setRoi(roi);
 
         // Saving mask.
-        Filer.save(imp, basePath, "masks", "mask_" + channel + ".tif");
+        context.saveImage(imp, "masks", "mask_" + channel + ".tif");
         imp.close();
     }
 
+    /**
+     * Creates a mask from a fluorescence image, streaming it from disk one tile
+     * at a time. Each tile is read with a halo wide enough for the median and
+     * closing filters, and the filtered channel is kept in a temporary file so
+     * that the threshold can be taken from the histogram of the whole image.
+     * Tiled masks are saved without a selection, which is traced from the mask
+     * pixels when needed.
+     *
+     * @param context       the context of the image folder.
+     * @param channel       the name of the channel to create a mask from.
+     * @param multiplier    the degree of amplification.
+     * @param medianRadius  the radius to apply for the median filter.
+     * @param closingRadius the radius to apply for the closing filter.
+     * @throws IOException if the channel cannot be read or the mask written.
+     */
+    private void createMaskTiled(ImageContext context, String channel, double multiplier, double medianRadius,
+            int closingRadius) throws IOException {
+        int halo = (int) Math.ceil(medianRadius) + 1 + 2 * closingRadius;
+        String filteredPath = Filer.getPath(context.getBasePath(), "masks", "mask_" + channel + ".tmp");
+        try (TiledImage source = TiledImage.open(context.getInputPath("channels", channel + ".tif"));
+                TiledImage filtered = TiledImage.create(filteredPath, source.getWidth(), source.getHeight(),
+                        source.getBitDepth(), source.getCalibration(), null);
+                TiledImage mask = TiledImage.create(context.getOutputPath("masks", "mask_" + channel + ".tif"),
+                        source.getWidth(), source.getHeight(), 8, source.getCalibration(), null)) {
+            List<Rectangle> tiles = source.getTiles(this.processingTileSize);
+
+            // Filtering each tile and getting the range of filtered values.
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (Rectangle tile : tiles) {
+                Rectangle expanded = source.expand(tile, halo);
+                ImageProcessor ip = source.read(0, expanded);
+                ip.multiply(multiplier);
+                new RankFilters().rank(ip, medianRadius, RankFilters.MEDIAN);
+                ip = Morphology.closing(ip, Strel.Shape.DISK.fromRadius(closingRadius));
+                Rectangle inner = new Rectangle(tile.x - expanded.x, tile.y - expanded.y, tile.width, tile.height);
+                filtered.write(ip, inner, tile.x, tile.y);
+                ip.setRoi(inner);
+                ip = ip.crop();
+                ip.resetMinAndMax();
+                min = Math.min(min, ip.getMin());
+                max = Math.max(max, ip.getMax());
+            }
+
+            // Taking the threshold from the histogram of the whole image.
+            if (source.getBitDepth() == 8) {
+                min = 0;
+                max = NUM_BINS;
+            }
+            int[] histogram = new int[NUM_BINS];
+            for (Rectangle tile : tiles) {
+                ImageProcessor ip = filtered.read(0, tile);
+                addHistogram(ip, min, max, histogram);
+            }
+            int level = new ByteProcessor(1, 1).getAutoThreshold(histogram);
+
+            // Binarizing each tile.
+            Rectangle full = new Rectangle();
+            for (Rectangle tile : tiles) {
+                ImageProcessor ip = filtered.read(0, tile);
+                full.setSize(tile.width, tile.height);
+                mask.write(threshold(ip, min, max, level), full, tile.x, tile.y);
+            }
+        } finally {
+            Files.deleteIfExists(Paths.get(filteredPath));
+        }
+    }
+
+    /**
+     * Converts a channel to a binary 8-bit mask using the default ImageJ
+     * threshold. 16-bit and 32-bit channels are thresholded at their native
+     * depth, using the same threshold on a 256-bin histogram of their range.
+     *
+     * @param ip the channel to threshold.
+     * @return the binary mask, with 255 for the foreground.
+     */
+    private static ImageProcessor autoThreshold(ImageProcessor ip) {
+        if (ip instanceof ByteProcessor) {
+            ip.autoThreshold();
+            return ip;
+        }
+        ip.resetMinAndMax();
+        int[] histogram = new int[NUM_BINS];
+        addHistogram(ip, ip.getMin(), ip.getMax(), histogram);
+        return threshold(ip, ip.getMin(), ip.getMax(), ip.getAutoThreshold(histogram));
+    }
+
+    /**
+     * Adds the pixels of an image to a histogram of a fixed range.
+     *
+     * @param ip        the image.
+     * @param min       the value of the first bin.
+     * @param max       the value past the end of the last bin.
+     * @param histogram the histogram to add to.
+     */
+    private static void addHistogram(ImageProcessor ip, double min, double max, int[] histogram) {
+        for (int i = 0; i < ip.getPixelCount(); i++) {
+            histogram[getBin(ip.getf(i), min, max)]++;
+        }
+    }
+
+    /**
+     * Binarizes an image, keeping the pixels above a histogram bin.
+     *
+     * @param ip    the image.
+     * @param min   the value of the first bin.
+     * @param max   the value past the end of the last bin.
+     * @param level the highest background bin.
+     * @return the binary mask, with 255 for the foreground.
+     */
+    private static ImageProcessor threshold(ImageProcessor ip, double min, double max, int level) {
+        ByteProcessor mask = new ByteProcessor(ip.getWidth(), ip.getHeight());
+        for (int i = 0; i < mask.getPixelCount(); i++) {
+            if (getBin(ip.getf(i), min, max) > level) {
+                mask.set(i, 255);
+            }
+        }
+        return mask;
+    }
+
+    private static int getBin(float value, double min, double max) {
+        if (max <= min) {
+            return 0;
+        }
+        return Math.max(0, Math.min(NUM_BINS - 1, (int) ((value - min) * NUM_BINS / (max - min))));
+    }
+
 }
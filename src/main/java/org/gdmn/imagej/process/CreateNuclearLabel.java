@@ -1,18 +1,21 @@
 package org.gdmn.imagej.process;
 
-import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.Roi;
-import ij.measure.Measurements;
+import ij.measure.Calibration;
 import ij.plugin.LutLoader;
-import ij.plugin.frame.RoiManager;
-import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.IntPredicate;
 import org.gdmn.imagej.utils.BatchCommand;
 import org.gdmn.imagej.utils.Defaults;
-import org.gdmn.imagej.utils.Filer;
+import org.gdmn.imagej.utils.ImageContext;
+import org.gdmn.imagej.utils.LabelMeasurements;
+import org.gdmn.imagej.utils.RoiSet;
+import org.gdmn.imagej.utils.StarDist;
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
+import org.scijava.command.CommandService;
 import org.scijava.plugin.Menu;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -45,94 +48,90 @@ public class CreateNuclearLabel extends BatchCommand {
     @Parameter(label = "Area Threshold (µm^2)", persist = false, style = "slider", min = "0", max = "150", stepSize = "1")
     private int areaThreshold = Integer.parseInt(Defaults.get("areaThreshold", "10"));
 
+    @Parameter(label = "Tile size (px)", persist = false, min = "256", stepSize = "256")
+    private int tileSize = Integer.parseInt(Defaults.get("tileSize", "1024"));
+
     @Parameter(label = "Run", callback = "runAll")
     private Button runButton;
 
-    public void process(String basePath) {
-        this.individualiseNuclei(basePath, percentileLow, percentileHigh, probabilityThreshold, overlapThreshold,
-                areaThreshold);
+    @Parameter
+    CommandService commandService;
+
+    private StarDist starDist;
+
+    @Override
+    public boolean savesRois() {
+        return true;
+    }
+
+    /**
+     * Prepares StarDist once for the whole batch before processing images.
+     */
+    @Override
+    public void execute(List<Path> targetPaths) {
+        this.prepare();
+        super.execute(targetPaths);
+    }
+
+    /**
+     * Creates the StarDist detector from the current parameters.
+     */
+    void prepare() {
+        this.starDist = new StarDist(this.commandService, this.percentileLow, this.percentileHigh,
+                this.probabilityThreshold, this.overlapThreshold, this.tileSize);
+    }
+
+    public void process(ImageContext context) {
+        individualiseNuclei(context, this.starDist, this.areaThreshold);
     }
 
     /**
      * Runs StarDist nuclear segmentation on the nuclei.tif image.
      *
-     * @param basePath             the path to the image folder.
-     * @param percentileLow        StarDist percentile low.
-     * @param percentileHigh       StarDist percentile high.
-     * @param probabilityThreshold StarDist probability threshold.
-     * @param overlapThreshold     StarDist overlap threshold.
-     * @param areaThreshold        StarDist area threshold.
+     * @param context       the context of the image folder.
+     * @param starDist      the prepared StarDist detector.
+     * @param areaThreshold the minimum nuclear area.
      */
-    public void individualiseNuclei(String basePath, double percentileLow, double percentileHigh,
-            double probabilityThreshold, double overlapThreshold, int areaThreshold) {
-        ImagePlus imp = new ImagePlus(Filer.getPath(basePath, "channels", "nuclei.tif"));
-        imp.show();
+    public static void individualiseNuclei(ImageContext context, StarDist starDist, int areaThreshold) {
+        ImagePlus imp = context.openImage("channels", "nuclei.tif");
 
         // Running StarDist 2D.
-        String[] args = {
-                "'input':'" + imp.getTitle() + "'",
-                "'modelChoice':'Versatile (fluorescent nuclei)'",
-                "'normalizeInput':'true'",
-                "'percentileBottom':'" + percentileLow + "'",
-                "'percentileTop':'" + percentileHigh + "'",
-                "'probThresh':'" + probabilityThreshold + "'",
-                "'nmsThresh':'" + overlapThreshold + "'",
-                "'outputType':'ROI Manager'",
-                "'nTiles':'1'",
-                "'excludeBoundary':'2'",
-                "'roiPosition':'Automatic'",
-                "'verbose':'false'",
-                "'showCsbdeepProgress':'false'",
-                "'showProbAndDist':'false'"
-        };
-        String argString = String.join(", ", args);
-        IJ.runMacro("run(\"Command From Macro\", \"command=[de.csbdresden.stardist.StarDist2D], args=[" + argString
-                + "], process=[false]\")");
-
-        // Hiding image and roi manager.
-        RoiManager roiManager = RoiManager.getInstance();
-        roiManager.setVisible(false);
-        imp.hide();
-
-        // Post-processing.
-        ImageProcessor ip = imp.getProcessor();
-        ip.setColor(0);
-        ip.fill();
-        Roi[] rois = roiManager.getRoisAsArray();
-
-        // Getting thresholded rois.
-        for (int i = rois.length - 1; i >= 0; i--) {
-            imp.setRoi(rois[i]);
-            double area = imp.getStatistics(Measurements.AREA).area;
-            if (area < areaThreshold) {
-                roiManager.select(i);
-                roiManager.runCommand("Delete");
+        RoiSet detected = starDist.detect(imp);
+
+        // Rasterizing all nuclei once and dropping those below the area threshold.
+        Calibration cal = imp.getCalibration();
+        LabelMeasurements measurements = new LabelMeasurements(detected.toArray(), imp.getWidth(), imp.getHeight());
+        int[] pixelCounts = measurements.getPixelCounts();
+        IntPredicate largeEnough = i -> pixelCounts[i] * cal.pixelWidth * cal.pixelHeight >= areaThreshold;
+        RoiSet rois = detected.filterByIndex(largeEnough);
+        context.addCount("nucleiDetected", detected.size());
+        context.addCount("nuclei", rois.size());
+        int[] values = new int[detected.size()];
+        for (int i = 0, kept = 0; i < detected.size(); i++) {
+            if (largeEnough.test(i)) {
+                values[i] = ++kept;
             }
         }
 
-        // If more than 255 rois convert to 16 bit first.
-        rois = roiManager.getRoisAsArray();
-        if (rois.length > 255) {
-            ImageConverter converter = new ImageConverter(imp);
-            converter.convertToGray16();
-        }
-
-        // Re-filling rois.
-        ip = imp.getProcessor();
-        for (int i = 0; i < roiManager.getCount(); i++) {
-            ip.setColor(i + 1);
-            ip.fill(rois[i]);
+        // Writing the label image, choosing the bit depth from the number of nuclei.
+        if (measurements.hasOverlaps() && rois.size() < detected.size()) {
+            measurements = new LabelMeasurements(rois.toArray(), imp.getWidth(), imp.getHeight());
+            values = new int[rois.size()];
+            for (int i = 0; i < rois.size(); i++) {
+                values[i] = i + 1;
+            }
         }
+        ImageProcessor ip = measurements.createLabelImage(values);
+        imp.setProcessor(ip);
 
         // Resetting selection and applying LUT.
         imp.deleteRoi();
         ip.setColorModel(LutLoader.getLut("glasbey on dark"));
 
         // Saving and closing.
-        Filer.save(imp, basePath, "labels", "label_roi.tif");
-        roiManager.runCommand("Save", Filer.getPath(basePath, "zips", "zip_roi.zip"));
-        roiManager.close();
+        context.saveImage(imp, "labels", "label_roi.tif");
+        context.saveRois(rois, "zip_roi.zip");
         imp.close();
     }
 
-}
\ No newline at end of file
+}
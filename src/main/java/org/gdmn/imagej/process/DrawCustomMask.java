@@ -10,6 +10,8 @@ import ij.process.ImageProcessor;
 import org.gdmn.imagej.utils.BatchCommand;
 import org.gdmn.imagej.utils.Defaults;
 import org.gdmn.imagej.utils.Filer;
+import org.gdmn.imagej.utils.ImageContext;
+import org.gdmn.imagej.utils.Masks;
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
 import org.scijava.plugin.Menu;
@@ -48,11 +50,17 @@ public class DrawCustomMask extends BatchCommand {
     @Parameter(label = "Run", callback = "runAll")
     private Button runButton;
 
-    public void process(String basePath) {
+    public void process(ImageContext context) {
+        String basePath = context.getBasePath();
         this.drawCustomMask(basePath, this.templateType, this.templateTissue, this.outputMask,
                 this.createTrabecularMask);
     }
 
+    @Override
+    public boolean isSequential() {
+        return true;
+    }
+
     /**
      * Draw a custom mask on a template image, saving the mask and its reverse.
      *
@@ -79,7 +87,7 @@ public class DrawCustomMask extends BatchCommand {
         ImageProcessor ip = imp.getProcessor();
         ip.setColor(255);
         ImagePlus guideMask = new ImagePlus(Filer.getPath(basePath, "Masks", "mask_myo.tif"));
-        guideMask.getRoi().drawPixels(ip);
+        Masks.getRoi(guideMask).drawPixels(ip);
         guideMask.close();
         imp.killRoi();
         imp.show();
@@ -2,22 +2,33 @@ package org.gdmn.imagej.process;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.Roi;
+import ij.gui.Overlay;
+import ij.gui.TextRoi;
+import ij.measure.Calibration;
 import ij.measure.Measurements;
-import ij.plugin.frame.RoiManager;
+import ij.plugin.LutLoader;
+import ij.process.ByteProcessor;
 import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
-import java.io.File;
+import java.awt.Color;
+import java.awt.Rectangle;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.gdmn.imagej.utils.BatchCommand;
 import org.gdmn.imagej.utils.Defaults;
 import org.gdmn.imagej.utils.Filer;
+import org.gdmn.imagej.utils.ImageContext;
+import org.gdmn.imagej.utils.LabelMeasurements;
+import org.gdmn.imagej.utils.Logger;
 import org.gdmn.imagej.utils.Masks;
+import org.gdmn.imagej.utils.RoiSet;
+import org.gdmn.imagej.utils.TiledImage;
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
 import org.scijava.plugin.Menu;
@@ -33,9 +44,12 @@ import org.scijava.widget.Button;
         @Menu(label = "Analyze Marker", weight = 27)
 })
 public class Quantify extends BatchCommand {
+    private static final int PREVIEW_WIDTH = 2048;
+
     private ImagePlus intensityImp;
     private ImagePlus activityImp;
-    private RoiManager roiManager;
+    private final List<PreviewSample> previewSamples = new ArrayList<>();
+    private Map<String, Double> markers;
 
     @Parameter(visibility = ItemVisibility.MESSAGE)
     private String header = "<h2 style='width: 500px'>Generate quantifications</h2>";
@@ -43,28 +57,153 @@ public class Quantify extends BatchCommand {
     @Parameter(label = "Threshold:", style = "slider, format:#.####", min = "0", max = "1", stepSize = "0.0125", callback = "updatePreview")
     private double markerThreshold = Double.parseDouble(Defaults.get("markerThreshold", "0.3"));
 
+    @Parameter(label = "Marker channels:")
+    private String markerChannels = Defaults.get("markerChannels", "marker");
+
+    @Parameter(visibility = ItemVisibility.MESSAGE, persist = false)
+    private String thresholdInfo = "<p style='width: 500px;'>"
+            + "Thresholds are a fraction of the intensity range of each marker channel: 0-255 for 8-bit channels, and "
+            + "the display range (or the range of pixel values if none was saved) for 16-bit and 32-bit channels. "
+            + "Give channels their own threshold as name:threshold (i.e. marker:0.3,myo:0.5).";
+
+    @Parameter(label = "Save nucleus table:")
+    private boolean saveNucleusTable = Boolean.parseBoolean(Defaults.get("saveNucleusTable", "false"));
+
+    @Parameter(label = "Tile size for large images (px, 0 = off)", min = "0")
+    private int processingTileSize = Integer.parseInt(Defaults.get("processingTileSize", "0"));
+
+    @Parameter(label = "Preview images:", min = "1")
+    private int previewCount = Integer.parseInt(Defaults.get("previewCount", "1"));
+
+    @Parameter(label = "Preview sampling:", choices = { "First", "Random", "Listed" })
+    private String previewSampling = Defaults.get("previewSampling", "First");
+
+    @Parameter(label = "Listed images (i.e. 1, 5, 12):", required = false)
+    private String previewImages = Defaults.get("previewImages", "");
+
     @Parameter(label = "Show preview:", callback = "showPreview")
     private boolean showPreview = false;
 
     @Parameter(label = "Run", callback = "runAll")
     private Button runButton;
 
+    @Override
+    public Map<String, String> getParameters() {
+        Map<String, String> parameters = super.getParameters();
+        parameters.remove("showPreview");
+        parameters.remove("previewCount");
+        parameters.remove("previewSampling");
+        parameters.remove("previewImages");
+        return parameters;
+    }
+
+    /**
+     * Checks the marker channels and closes the preview once for the whole
+     * batch before processing images.
+     */
+    @Override
+    public void execute(List<Path> targetPaths) {
+        this.prepare();
+        this.closePreview();
+        super.execute(targetPaths);
+    }
+
+    /**
+     * Parses the marker channels and their thresholds from the current
+     * parameters.
+     *
+     * @throws IllegalArgumentException if a threshold is not a number.
+     */
+    void prepare() {
+        this.markers = this.getMarkers();
+    }
+
+    /** A sampled image folder, with its nuclei measured once for previewing. */
+    private static class PreviewSample {
+        private final String name;
+        private final Rectangle tile;
+        private final double[] means;
+        private final double[] range;
+        private final int[] labels;
+
+        PreviewSample(String name, Rectangle tile, double[] means, double[] range, int[] labels) {
+            this.name = name;
+            this.tile = tile;
+            this.means = means;
+            this.range = range;
+            this.labels = labels;
+        }
+    }
+
     /**
-     * Shows a preview of the thresholded marker image.
+     * Shows a preview of the thresholded marker images for a sample of image
+     * folders, arranged in a grid. The nuclei of each sample are measured once,
+     * so moving the threshold only recolours them.
      */
     public void showPreview() {
         if (this.showPreview) {
 
-            // Getting preview image.
-            String previewDir = Filer.getBasePaths(this.selectedDir, this.filePattern).get(0).getParent().toString();
+            // Getting preview images.
+            List<Path> samplePaths = this.getPreviewPaths(Filer.getBasePaths(this.selectedDir, this.filePattern));
+            String marker;
+            try {
+                marker = this.getMarkers().keySet().iterator().next();
+            } catch (IllegalArgumentException e) {
+                Logger.error(e.getMessage());
+                return;
+            }
+            int numColumns = (int) Math.ceil(Math.sqrt(samplePaths.size()));
+            int numRows = (samplePaths.size() + numColumns - 1) / Math.max(1, numColumns);
+            int tileSize = PREVIEW_WIDTH / Math.max(1, numColumns);
+            ImageProcessor intensityIp = new ByteProcessor(Math.max(1, numColumns * tileSize),
+                    Math.max(1, numRows * tileSize));
+            ImageProcessor activityIp = new ByteProcessor(intensityIp.getWidth(), intensityIp.getHeight());
 
-            // Opening ROI Manager and images.
-            this.roiManager = new RoiManager(false);
-            this.roiManager.runCommand("Open", Filer.getPath(previewDir, "zips", "zip_roi.zip"));
-            this.intensityImp = new ImagePlus(Filer.getPath(previewDir, "channels", "marker.tif"));
-            this.activityImp = new ImagePlus(Filer.getPath(previewDir, "labels", "label_roi.tif"));
-            ImageConverter converter = new ImageConverter(this.activityImp);
-            converter.convertToGray8();
+            // Measuring the nuclei of each sample and drawing its marker channel.
+            this.previewSamples.clear();
+            for (int s = 0; s < samplePaths.size(); s++) {
+                String previewDir = samplePaths.get(s).getParent().toString();
+                ImagePlus imp = Filer.openImage(previewDir, "channels", marker + ".tif", true);
+                if (imp.getProcessor() == null) {
+                    Logger.warn("Marker channel not found for preview: " + previewDir);
+                    continue;
+                }
+                RoiSet rois = Filer.openRois(previewDir, "zips", "zip_roi.zip", true);
+                ImageProcessor ip = imp.getProcessor();
+                int width = ip.getWidth();
+                int height = ip.getHeight();
+                LabelMeasurements measurements = new LabelMeasurements(rois.toArray(), width, height);
+                double[] means = measurements.getMeans(ip);
+
+                // Scaling the channel and the nuclear labels into the sample's tile.
+                double scale = Math.min(1, (double) tileSize / Math.max(width, height));
+                Rectangle tile = new Rectangle((s % numColumns) * tileSize, (s / numColumns) * tileSize,
+                        Math.max(1, (int) (width * scale)), Math.max(1, (int) (height * scale)));
+                ImageProcessor scaled = ip.resize(tile.width, tile.height, true);
+                scaled.resetMinAndMax();
+                intensityIp.insert(scaled.convertToByteProcessor(true), tile.x, tile.y);
+                int[] labels = new int[tile.width * tile.height];
+                int[] sourceLabels = measurements.getLabels();
+                for (int y = 0; y < tile.height; y++) {
+                    int sourceY = Math.min(height - 1, (int) ((y + 0.5) / scale));
+                    for (int x = 0; x < tile.width; x++) {
+                        int sourceX = Math.min(width - 1, (int) ((x + 0.5) / scale));
+                        labels[y * tile.width + x] = sourceLabels[sourceY * width + sourceX];
+                    }
+                }
+                String name = previewDir.substring(Math.min(previewDir.length(), this.selectedDir.length()));
+                this.previewSamples.add(new PreviewSample(name, tile, means, getRange(ip), labels));
+                imp.close();
+            }
+            if (this.previewSamples.isEmpty()) {
+                Logger.warn("No images found for preview.");
+                return;
+            }
+            this.intensityImp = new ImagePlus("Marker preview", intensityIp);
+            if (LutLoader.getLut("glasbey on dark") != null) {
+                activityIp.setColorModel(LutLoader.getLut("glasbey on dark"));
+            }
+            this.activityImp = new ImagePlus("Activity preview", activityIp);
 
             // Getting image dimensions.
             double screenWidth = IJ.getScreenSize().getWidth();
@@ -88,9 +227,7 @@ public class Quantify extends BatchCommand {
     }
 
     private void closePreview() {
-        if (this.roiManager != null) {
-            this.roiManager.close();
-        }
+        this.previewSamples.clear();
         if (this.intensityImp != null) {
             this.intensityImp.close();
         }
@@ -100,129 +237,561 @@ public class Quantify extends BatchCommand {
     }
 
     /**
-     * Updates the preview image.
+     * Updates the preview image, recolouring the nuclei of every sample from
+     * their cached means and showing the active and total counts.
      */
     public void updatePreview() {
-        Roi roi = this.intensityImp.getRoi();
-        if (this.intensityImp.isVisible() && this.activityImp.isVisible()) {
-            Roi[] rois = this.roiManager.getRoisAsArray();
-            // Checking intensities.
-            for (int i = 0; i < rois.length; i++) {
-                this.intensityImp.setRoi(rois[i]);
-                ImageProcessor ip = this.activityImp.getProcessor();
-                double mean = this.intensityImp.getStatistics(Measurements.MEAN).mean;
-                if (mean > markerThreshold * 255) {
-                    // Set colour to red.
-                    ip.setColor(106);
-                    ip.fill(rois[i]);
-                } else {
-                    // Set colour to blue.
-                    ip.setColor(46);
-                    ip.fill(rois[i]);
+        if (this.activityImp != null && this.intensityImp.isVisible() && this.activityImp.isVisible()) {
+            double threshold;
+            try {
+                threshold = this.getMarkers().values().iterator().next();
+            } catch (IllegalArgumentException e) {
+                Logger.error(e.getMessage());
+                return;
+            }
+            ImageProcessor ip = this.activityImp.getProcessor();
+            Overlay overlay = new Overlay();
+            int totalActive = 0;
+            int total = 0;
+            for (PreviewSample sample : this.previewSamples) {
+                // Checking intensities.
+                int numberActive = 0;
+                int[] colours = new int[sample.means.length + 1];
+                for (int i = 0; i < sample.means.length; i++) {
+                    if (sample.means[i] > getThreshold(threshold, sample.range)) {
+                        // Set colour to red.
+                        colours[i + 1] = 106;
+                        numberActive++;
+                    } else {
+                        // Set colour to blue.
+                        colours[i + 1] = 46;
+                    }
                 }
+                for (int y = 0; y < sample.tile.height; y++) {
+                    for (int x = 0; x < sample.tile.width; x++) {
+                        ip.set(sample.tile.x + x, sample.tile.y + y, colours[sample.labels[y * sample.tile.width + x]]);
+                    }
+                }
+                TextRoi label = new TextRoi(sample.tile.x + 4, sample.tile.y + 4,
+                        sample.name + ": " + numberActive + "/" + sample.means.length);
+                label.setStrokeColor(Color.WHITE);
+                overlay.add(label);
+                totalActive += numberActive;
+                total += sample.means.length;
             }
+            String counts = "Active " + totalActive + "/" + total + " nuclei in " + this.previewSamples.size()
+                    + " images";
+            this.activityImp.setOverlay(overlay);
+            this.activityImp.setTitle("Activity preview (" + counts + ")");
+            IJ.showStatus(counts);
+            this.activityImp.updateAndDraw();
         }
-        this.activityImp.updateAndDraw();
-        this.intensityImp.setRoi(roi);
+    }
+
+    /**
+     * Gets the image folders to preview, as the first or a random set of
+     * images, or the listed images (counting from 1).
+     *
+     * @param basePaths the paths to every image in the run.
+     * @return the sampled paths.
+     */
+    private List<Path> getPreviewPaths(List<Path> basePaths) {
+        List<Path> paths = new ArrayList<>();
+        if (this.previewSampling.equals("Listed")) {
+            for (String entry : this.previewImages.split(",")) {
+                try {
+                    int index = Integer.parseInt(entry.trim()) - 1;
+                    if (index >= 0 && index < basePaths.size()) {
+                        paths.add(basePaths.get(index));
+                    }
+                } catch (NumberFormatException e) {
+                    Logger.warn("Skipping preview image \"" + entry.trim() + "\"");
+                }
+            }
+            return paths;
+        }
+        paths.addAll(basePaths);
+        if (this.previewSampling.equals("Random")) {
+            Collections.shuffle(paths);
+        }
+        return paths.subList(0, Math.min(Math.max(1, this.previewCount), paths.size()));
     }
 
     /**
      * Extracts and saves quantifications for an image folder and saves marker
      * labels.
      */
-    public void process(String basePath) {
-        this.closePreview();
-
-        // Initialising output file.
+    public void process(ImageContext context) {
+        // Initialising output files.
         final List<String> data = new ArrayList<>();
+        final List<String> table = new ArrayList<>();
+        table.add("tissue,marker,label,centroid_x,centroid_y,area,mean,integrated,max,active");
+
+        // Measuring nuclei, streaming very large images in tiles.
+        try {
+            if (this.processingTileSize > 0) {
+                this.measureNucleiTiled(context, this.markers, data, table);
+            } else {
+                this.measureNuclei(context, this.markers, data, table);
+            }
+
+            // Getting mask areas.
+            for (String maskName : context.list("masks")) {
+                String[] fileName = maskName.split("_");
+                String fileType = fileName[0];
 
+                if (fileType.equals("mask")) {
+                    // If mask get the entire area.
+                    if (this.processingTileSize > 0) {
+                        data.add(maskName + "=" + this.getAreaTiled(context, maskName));
+                    } else {
+                        ImagePlus imp = context.openImage("masks", maskName);
+                        imp.setRoi(Masks.getRoi(imp));
+                        data.add(maskName + "=" + getArea(imp));
+                        imp.close();
+                    }
+
+                } else if (fileType.equals("sublayer") && this.processingTileSize > 0) {
+                    // If sublayer, combine with masks first.
+                    data.add(maskName + "(myo)=" + this.getAreaTiled(context, maskName, "mask_myo.tif"));
+                    data.add(maskName + "(endo)=" + this.getAreaTiled(context, maskName, "mask_endo.tif"));
+                } else if (fileType.equals("sublayer")) {
+                    // If sublayer, combine with masks first.
+                    ImagePlus sublayer = context.openImage("masks", maskName);
+                    ImagePlus myo = context.openImage("masks", "mask_myo.tif");
+                    ImagePlus endo = context.openImage("masks", "mask_endo.tif");
+                    myo = Masks.and(sublayer, myo);
+                    data.add(maskName + "(myo)=" + getArea(myo));
+                    endo = Masks.and(sublayer, endo);
+                    data.add(maskName + "(endo)=" + getArea(endo));
+                    sublayer.close();
+                    myo.close();
+                    endo.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // Writing data.
+        try {
+            context.saveText(data, "", "data.txt");
+            if (this.saveNucleusTable) {
+                context.saveText(table, "", "nuclei.csv");
+            }
+        } catch (IOException e) {
+            IJ.log(e.getMessage());
+        }
+    }
+
+    /**
+     * Measures the marker intensities of each set of nuclei and saves the
+     * marker labels.
+     *
+     * @param context the context of the image folder.
+     * @param markers the thresholds keyed by marker channel.
+     * @param data    the quantification lines.
+     * @param table   the nucleus table lines.
+     */
+    private void measureNuclei(ImageContext context, Map<String, Double> markers, List<String> data,
+            List<String> table) {
         // Opening label image.
-        ImagePlus labelImp = new ImagePlus(Filer.getPath(basePath, "labels", "label_roi.tif"));
+        ImagePlus labelImp = context.openImage("labels", "label_roi.tif");
         ImageConverter converter = new ImageConverter(labelImp);
         converter.convertToGray8();
         ImageProcessor labelIp = labelImp.getProcessor();
         labelIp.setColor(0);
         labelIp.fill();
 
-        // Opening intensity image.
-        ImagePlus imp = new ImagePlus(Filer.getPath(basePath, "channels", "marker.tif"));
+        // Opening intensity images.
+        ImagePlus[] markerImps = new ImagePlus[markers.size()];
+        ImageProcessor[] markerIps = new ImageProcessor[markers.size()];
+        double[][] ranges = new double[markers.size()][];
+        int k = 0;
+        for (String marker : markers.keySet()) {
+            markerImps[k] = context.openImage("channels", marker + ".tif");
+            if (markerImps[k].getProcessor() == null) {
+                throw new IllegalStateException("Marker channel not found: " + marker + ".tif");
+            }
+            markerIps[k] = markerImps[k].getProcessor();
+            ranges[k] = getRange(markerIps[k]);
+            k++;
+        }
+        ImagePlus imp = markerImps[0];
+        Calibration cal = imp.getCalibration();
 
         // Getting list of zips.
-        File dir = new File(Filer.getPath(basePath, "zips", ""));
-        File[] files = dir.listFiles();
-        for (File file : files) {
-            String filePath = file.getPath();
-            String fileName = file.getName().substring(4, file.getName().length() - 4);
-            String fileExtension = filePath.substring(filePath.length() - 4);
-            if (fileExtension.equals(".zip")) {
-                labelIp.setColor(0);
-                labelIp.fill();
-                // Opening ROI manager.
-                RoiManager roiManager = new RoiManager(false);
-                roiManager.runCommand("Open", filePath);
-                Roi[] rois = roiManager.getRoisAsArray();
-                // Checking intensities.
-                int numberActive = 0;
-                for (int i = 0; i < rois.length; i++) {
-                    imp.setRoi(rois[i]);
-                    double mean = imp.getStatistics(Measurements.MEAN).mean;
-                    if (mean > markerThreshold * 255) {
-                        // Set colour to red.
-                        labelIp.setColor(106);
-                        labelIp.fill(rois[i]);
-                        numberActive += 1;
-                    } else {
-                        // Set colour to blue.
-                        labelIp.setColor(46);
-                        labelIp.fill(rois[i]);
+        for (String zipName : context.list("zips")) {
+            if (zipName.endsWith(".zip")) {
+                String fileName = zipName.substring(4, zipName.length() - 4);
+                // Opening ROIs and measuring all nuclei against all markers in one pass.
+                RoiSet rois = context.openRois(zipName);
+                LabelMeasurements measurements = new LabelMeasurements(rois.toArray(), imp.getWidth(), imp.getHeight());
+                LabelMeasurements.Intensities[] intensities = measurements.measure(markerIps);
+                k = 0;
+                for (Map.Entry<String, Double> marker : markers.entrySet()) {
+                    double[] means = intensities[k].getMeans();
+                    // Checking intensities.
+                    int numberActive = 0;
+                    int[] colours = new int[rois.size()];
+                    boolean[] active = new boolean[rois.size()];
+                    for (int i = 0; i < rois.size(); i++) {
+                        if (means[i] > getThreshold(marker.getValue(), ranges[k])) {
+                            // Set colour to red.
+                            colours[i] = 106;
+                            active[i] = true;
+                            numberActive += 1;
+                        } else {
+                            // Set colour to blue.
+                            colours[i] = 46;
+                        }
+                    }
+                    labelIp.setColor(0);
+                    labelIp.fill();
+                    measurements.paint(labelIp, colours);
+                    if (this.saveNucleusTable) {
+                        addTableRows(table, fileName, marker.getKey(), rois.getIds(), measurements.getPixelCounts(),
+                                measurements.getCentroidsX(), measurements.getCentroidsY(), intensities[k], active,
+                                cal);
                     }
+                    // Keeping the original names for the default marker channel.
+                    String suffix = marker.getKey().equals("marker") ? "" : "_" + marker.getKey();
+                    context.saveImage(labelImp, "marker", "marker_" + fileName + suffix + ".tif");
+                    data.add("count_" + fileName + suffix + "_active=" + numberActive);
+                    k++;
                 }
-                Filer.save(labelImp, basePath, "marker", "marker_" + fileName + ".tif");
-                data.add("count_" + fileName + "_active=" + numberActive);
-                data.add("count_" + fileName + "_total=" + rois.length);
-                roiManager.close();
+                data.add("count_" + fileName + "_total=" + rois.size());
+                context.addCount("nucleiMeasured", rois.size());
             }
         }
 
         // Closing images.
-        imp.close();
         labelImp.close();
+        for (ImagePlus markerImp : markerImps) {
+            markerImp.close();
+        }
+    }
 
-        // Getting mask areas.
-        dir = new File(Filer.getPath(basePath, "masks", ""));
-        files = dir.listFiles();
-        for (File file : files) {
-            String filePath = file.getPath();
-            String[] fileName = file.getName().split("_");
-            String fileType = fileName[0];
-
-            if (fileType.equals("mask")) {
-                // If mask get the entire area.
-                imp = new ImagePlus(filePath);
-                data.add(file.getName() + "=" + imp.getStatistics(Measurements.AREA).area);
-                imp.close();
+    /**
+     * Measures the marker intensities of each set of nuclei, streaming the
+     * marker channels from disk one tile at a time. Each tile measures the
+     * nuclei whose bounds overlap it and the sums are added up across tiles,
+     * after which a second pass paints the marker labels tile by tile.
+     *
+     * @param context the context of the image folder.
+     * @param markers the thresholds keyed by marker channel.
+     * @param data    the quantification lines.
+     * @param table   the nucleus table lines.
+     * @throws IOException if the channels cannot be read or the labels written.
+     */
+    private void measureNucleiTiled(ImageContext context, Map<String, Double> markers, List<String> data,
+            List<String> table) throws IOException {
+        // Opening intensity images.
+        TiledImage[] markerImages = new TiledImage[markers.size()];
+        double[][] ranges = new double[markers.size()][];
+        try {
+            int k = 0;
+            for (String marker : markers.keySet()) {
+                markerImages[k] = TiledImage.open(context.getInputPath("channels", marker + ".tif"));
+                k++;
+            }
+            TiledImage first = markerImages[0];
+            Calibration cal = first.getCalibration();
+            List<Rectangle> tiles = first.getTiles(this.processingTileSize);
+            for (k = 0; k < markers.size(); k++) {
+                ranges[k] = getRangeTiled(markerImages[k], tiles);
+            }
+
+            // Getting list of zips.
+            for (String zipName : context.list("zips")) {
+                if (zipName.endsWith(".zip")) {
+                    String fileName = zipName.substring(4, zipName.length() - 4);
+                    RoiSet rois = context.openRois(zipName);
+
+                    // Measuring the nuclei overlapping each tile against all markers.
+                    int[] pixelCounts = new int[rois.size()];
+                    double[] centroidsX = new double[rois.size()];
+                    double[] centroidsY = new double[rois.size()];
+                    LabelMeasurements.Intensities[] intensities = new LabelMeasurements.Intensities[markers.size()];
+                    for (k = 0; k < markers.size(); k++) {
+                        intensities[k] = new LabelMeasurements.Intensities(rois.size());
+                    }
+                    for (Rectangle tile : tiles) {
+                        int[] indices = rois.getOverlapping(tile);
+                        if (indices.length == 0) {
+                            continue;
+                        }
+                        LabelMeasurements measurements = new LabelMeasurements(rois.subset(indices).toArray(), tile);
+                        ImageProcessor[] markerIps = new ImageProcessor[markers.size()];
+                        for (k = 0; k < markers.size(); k++) {
+                            markerIps[k] = markerImages[k].read(0, tile);
+                        }
+                        LabelMeasurements.Intensities[] tileIntensities = measurements.measure(markerIps);
+                        for (k = 0; k < markers.size(); k++) {
+                            intensities[k].add(tileIntensities[k], indices);
+                        }
+                        int[] tileCounts = measurements.getPixelCounts();
+                        for (int j = 0; j < indices.length; j++) {
+                            if (tileCounts[j] > 0) {
+                                pixelCounts[indices[j]] += tileCounts[j];
+                                centroidsX[indices[j]] += measurements.getCentroidsX()[j] * tileCounts[j];
+                                centroidsY[indices[j]] += measurements.getCentroidsY()[j] * tileCounts[j];
+                            }
+                        }
+                    }
+                    for (int i = 0; i < rois.size(); i++) {
+                        if (pixelCounts[i] > 0) {
+                            centroidsX[i] /= pixelCounts[i];
+                            centroidsY[i] /= pixelCounts[i];
+                        }
+                    }
 
-            } else if (fileType.equals("sublayer")) {
-                // If sublayer, combine with masks first.
-                ImagePlus sublayer = new ImagePlus(filePath);
-                ImagePlus myo = new ImagePlus(Filer.getPath(basePath, "masks", "mask_myo.tif"));
-                ImagePlus endo = new ImagePlus(Filer.getPath(basePath, "masks", "mask_endo.tif"));
-                myo = Masks.and(sublayer, myo);
-                data.add(file.getName() + "(myo)=" + myo.getStatistics(Measurements.AREA).area);
-                endo = Masks.and(sublayer, endo);
-                data.add(file.getName() + "(endo)=" + endo.getStatistics(Measurements.AREA).area);
-                sublayer.close();
-                myo.close();
-                endo.close();
+                    // Checking intensities.
+                    int[][] colours = new int[markers.size()][rois.size()];
+                    k = 0;
+                    for (Map.Entry<String, Double> marker : markers.entrySet()) {
+                        intensities[k].updateMeans(pixelCounts);
+                        double[] means = intensities[k].getMeans();
+                        int numberActive = 0;
+                        boolean[] active = new boolean[rois.size()];
+                        for (int i = 0; i < rois.size(); i++) {
+                            if (means[i] > getThreshold(marker.getValue(), ranges[k])) {
+                                // Set colour to red.
+                                colours[k][i] = 106;
+                                active[i] = true;
+                                numberActive += 1;
+                            } else {
+                                // Set colour to blue.
+                                colours[k][i] = 46;
+                            }
+                        }
+                        if (this.saveNucleusTable) {
+                            addTableRows(table, fileName, marker.getKey(), rois.getIds(), pixelCounts, centroidsX,
+                                    centroidsY, intensities[k], active, cal);
+                        }
+                        String suffix = marker.getKey().equals("marker") ? "" : "_" + marker.getKey();
+                        data.add("count_" + fileName + suffix + "_active=" + numberActive);
+                        k++;
+                    }
+                    data.add("count_" + fileName + "_total=" + rois.size());
+                    context.addCount("nucleiMeasured", rois.size());
+
+                    // Painting the marker labels tile by tile.
+                    TiledImage[] labelImages = new TiledImage[markers.size()];
+                    try {
+                        k = 0;
+                        for (String marker : markers.keySet()) {
+                            // Keeping the original names for the default marker channel.
+                            String suffix = marker.equals("marker") ? "" : "_" + marker;
+                            labelImages[k++] = TiledImage.create(
+                                    context.getOutputPath("marker", "marker_" + fileName + suffix + ".tif"),
+                                    first.getWidth(), first.getHeight(), 8, cal, LutLoader.getLut("glasbey on dark"));
+                        }
+                        Rectangle full = new Rectangle();
+                        for (Rectangle tile : tiles) {
+                            int[] indices = rois.getOverlapping(tile);
+                            if (indices.length == 0) {
+                                continue;
+                            }
+                            LabelMeasurements measurements = new LabelMeasurements(rois.subset(indices).toArray(), tile);
+                            full.setSize(tile.width, tile.height);
+                            for (k = 0; k < markers.size(); k++) {
+                                int[] tileColours = new int[indices.length];
+                                for (int j = 0; j < indices.length; j++) {
+                                    tileColours[j] = colours[k][indices[j]];
+                                }
+                                labelImages[k].write(measurements.createLabelImage(tileColours), full, tile.x, tile.y);
+                            }
+                        }
+                    } finally {
+                        for (TiledImage labelImage : labelImages) {
+                            if (labelImage != null) {
+                                labelImage.close();
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (TiledImage markerImage : markerImages) {
+                if (markerImage != null) {
+                    markerImage.close();
+                }
             }
         }
+    }
 
-        // Writing data.
-        Path dataPath = Paths.get(Filer.getPath(basePath, "", "data.txt"));
+    /**
+     * Gets the area of a mask, or of the overlap of several masks, by counting
+     * their shared foreground pixels tile by tile.
+     *
+     * @param context   the context of the image folder.
+     * @param maskNames the names of the mask files.
+     * @return the calibrated area of the mask overlap.
+     * @throws IOException if a mask cannot be read.
+     */
+    private double getAreaTiled(ImageContext context, String... maskNames) throws IOException {
+        TiledImage[] masks = new TiledImage[maskNames.length];
         try {
-            Files.write(dataPath, data);
-        } catch (IOException e) {
-            IJ.log(e.getMessage());
+            for (int m = 0; m < maskNames.length; m++) {
+                masks[m] = TiledImage.open(context.getInputPath("masks", maskNames[m]));
+            }
+            long count = 0;
+            ImageProcessor[] ips = new ImageProcessor[masks.length];
+            for (Rectangle tile : masks[0].getTiles(this.processingTileSize)) {
+                for (int m = 0; m < masks.length; m++) {
+                    ips[m] = masks[m].read(0, tile);
+                }
+                for (int i = 0; i < ips[0].getPixelCount(); i++) {
+                    boolean foreground = true;
+                    for (int m = 0; m < ips.length && foreground; m++) {
+                        foreground = ips[m].get(i) == 255;
+                    }
+                    if (foreground) {
+                        count++;
+                    }
+                }
+            }
+            Calibration cal = masks[0].getCalibration();
+            return count * cal.pixelWidth * cal.pixelHeight;
+        } finally {
+            for (TiledImage mask : masks) {
+                if (mask != null) {
+                    mask.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the area of the selection of a mask.
+     *
+     * @param imp the mask image with its selection set.
+     * @return the calibrated area, or 0 if the mask is empty.
+     */
+    private static double getArea(ImagePlus imp) {
+        return imp.getRoi() == null ? 0 : imp.getStatistics(Measurements.AREA).area;
+    }
+
+    /**
+     * Gets the intensity range that marker thresholds are a fraction of. 8-bit
+     * images use 0-255. 16-bit and 32-bit images use their display range,
+     * which is the range of their pixel values if none was saved, since
+     * their container maximum is rarely reached.
+     *
+     * @param ip the marker image, with its display range as opened.
+     * @return the minimum and maximum of the range.
+     */
+    private static double[] getRange(ImageProcessor ip) {
+        if (ip.getBitDepth() == 8) {
+            return new double[] { 0, 255 };
+        }
+        return new double[] { ip.getMin(), ip.getMax() };
+    }
+
+    /**
+     * Gets the intensity range that marker thresholds are a fraction of for an
+     * image read in tiles, reading the range of pixel values tile by tile if
+     * no display range was saved.
+     *
+     * @param image the marker image.
+     * @param tiles the tiles of the image.
+     * @return the minimum and maximum of the range.
+     * @throws IOException if the image cannot be read.
+     */
+    private static double[] getRangeTiled(TiledImage image, List<Rectangle> tiles) throws IOException {
+        if (image.getBitDepth() == 8) {
+            return new double[] { 0, 255 };
+        } else if (image.getDisplayRange(0) != null) {
+            return image.getDisplayRange(0);
+        }
+        double[] range = { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        for (Rectangle tile : tiles) {
+            ImageProcessor ip = image.read(0, tile);
+            ip.resetMinAndMax();
+            range[0] = Math.min(range[0], ip.getMin());
+            range[1] = Math.max(range[1], ip.getMax());
+        }
+        return range;
+    }
+
+    /**
+     * Gets the mean intensity above which a nucleus is marker-positive.
+     *
+     * @param fraction the threshold as a fraction of the intensity range.
+     * @param range    the minimum and maximum of the intensity range.
+     * @return the threshold intensity.
+     */
+    private static double getThreshold(double fraction, double[] range) {
+        return range[0] + fraction * (range[1] - range[0]);
+    }
+
+    /**
+     * Parses the marker channels and their thresholds. Entries are given as
+     * "name" or "name:threshold", using the threshold slider when omitted.
+     *
+     * @return the thresholds keyed by channel name, in the order given.
+     * @throws IllegalArgumentException if a threshold is not a number.
+     */
+    private Map<String, Double> getMarkers() {
+        Map<String, Double> markers = new LinkedHashMap<>();
+        for (String entry : this.markerChannels.split(",")) {
+            String[] parts = entry.split(":");
+            if (!parts[0].trim().isEmpty()) {
+                double threshold = this.markerThreshold;
+                if (parts.length > 2 || parts[0].trim().matches("[0-9.]+")) {
+                    throw new IllegalArgumentException("Invalid marker channel \"" + entry.trim()
+                            + "\" (expected name or name:threshold, i.e. marker:0.3)");
+                } else if (parts.length == 2) {
+                    try {
+                        threshold = Double.parseDouble(parts[1].trim());
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid threshold \"" + parts[1].trim()
+                                + "\" for marker channel " + parts[0].trim()
+                                + " (expected name or name:threshold, i.e. marker:0.3)");
+                    }
+                }
+                markers.put(parts[0].trim(), threshold);
+            }
+        }
+        if (markers.isEmpty()) {
+            markers.put("marker", this.markerThreshold);
+        }
+        return markers;
+    }
+
+    /**
+     * Adds a row per nucleus to the nucleus table.
+     *
+     * @param table        the table lines.
+     * @param tissue       the name of the nuclei set.
+     * @param marker       the name of the marker channel.
+     * @param ids          the nucleus id of each nucleus, as in the label images.
+     * @param pixelCounts  the number of pixels in each nucleus, with the
+     *                     measurements of nuclei without pixels left empty.
+     * @param centroidsX   the centroid x-coordinate of each nucleus in pixels.
+     * @param centroidsY   the centroid y-coordinate of each nucleus in pixels.
+     * @param intensities  the marker intensities of the nuclei.
+     * @param active       whether each nucleus is marker-positive.
+     * @param cal          the spatial calibration of the image.
+     */
+    private static void addTableRows(List<String> table, String tissue, String marker, int[] ids,
+            int[] pixelCounts, double[] centroidsX, double[] centroidsY, LabelMeasurements.Intensities intensities,
+            boolean[] active, Calibration cal) {
+        for (int i = 0; i < pixelCounts.length; i++) {
+            if (pixelCounts[i] == 0) {
+                // Leaving the measurements empty for nuclei outside the image.
+                table.add(tissue + "," + marker + "," + ids[i] + ",,," + IJ.d2s(0, 4) + ",,,," + (active[i] ? 1 : 0));
+                continue;
+            }
+            table.add(tissue + "," + marker + "," + ids[i]
+                    + "," + IJ.d2s(cal.getX(centroidsX[i]), 4)
+                    + "," + IJ.d2s(cal.getY(centroidsY[i]), 4)
+                    + "," + IJ.d2s(pixelCounts[i] * cal.pixelWidth * cal.pixelHeight, 4)
+                    + "," + IJ.d2s(intensities.getMeans()[i], 4)
+                    + "," + IJ.d2s(intensities.getSums()[i], 4)
+                    + "," + IJ.d2s(intensities.getMaxima()[i], 4)
+                    + "," + (active[i] ? 1 : 0));
         }
     }
 }
\ No newline at end of file
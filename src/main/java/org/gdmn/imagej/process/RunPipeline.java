@@ -0,0 +1,235 @@
+package org.gdmn.imagej.process;
+
+import ij.IJ;
+import ij.io.OpenDialog;
+import ij.io.SaveDialog;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.gdmn.imagej.utils.BatchCommand;
+import org.gdmn.imagej.utils.Defaults;
+import org.gdmn.imagej.utils.ImageContext;
+import org.gdmn.imagej.utils.Logger;
+import org.gdmn.imagej.utils.Profile;
+import org.scijava.ItemVisibility;
+import org.scijava.command.Command;
+import org.scijava.command.CommandService;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.Button;
+
+/**
+ * Command to run the non-interactive steps from roi.tif to data.txt in a
+ * single pass, passing intermediate images between steps in memory.
+ */
+@Plugin(type = Command.class, menu = {
+        @Menu(label = "2D Macro Tool"),
+        @Menu(label = "Run Pipeline", weight = 29)
+})
+public class RunPipeline extends BatchCommand {
+    private CleanChannels cleanChannels;
+    private CreateMask createMask;
+    private CreateNuclearLabel createNuclearLabel;
+    private SegmentLabel segmentLabel;
+    private SegmentSublayers segmentSublayers;
+    private Quantify quantify;
+    private final List<BatchCommand> stages = new ArrayList<>();
+
+    @Parameter(visibility = ItemVisibility.MESSAGE)
+    private String header = "<h2 style='width: 500px'>Run pipeline</h2>";
+
+    @Parameter(label = "Clean channels", persist = false)
+    private boolean runCleanChannels = Boolean.parseBoolean(Defaults.get("runCleanChannels", "true"));
+
+    @Parameter(label = "Create masks", persist = false)
+    private boolean runCreateMasks = Boolean.parseBoolean(Defaults.get("runCreateMasks", "true"));
+
+    @Parameter(label = "Mask channels", persist = false)
+    private String maskChannels = Defaults.get("maskChannels", "myo,endo");
+
+    @Parameter(label = "Create nuclear label", persist = false)
+    private boolean runNuclearLabel = Boolean.parseBoolean(Defaults.get("runNuclearLabel", "true"));
+
+    @Parameter(label = "Segment label", persist = false)
+    private boolean runSegmentLabel = Boolean.parseBoolean(Defaults.get("runSegmentLabel", "true"));
+
+    @Parameter(label = "Segment compact/trabecular sublayers", persist = false)
+    private boolean runSublayers = Boolean.parseBoolean(Defaults.get("runSublayers", "true"));
+
+    @Parameter(label = "Analyze marker", persist = false)
+    private boolean runQuantify = Boolean.parseBoolean(Defaults.get("runQuantify", "true"));
+
+    @Parameter(label = "Save intermediates", persist = false)
+    private boolean saveIntermediates = Boolean.parseBoolean(Defaults.get("saveIntermediates", "false"));
+
+    @Parameter(visibility = ItemVisibility.MESSAGE, persist = false)
+    private String info = "<p style='width: 500px;'>"
+            + "Runs the selected steps on each image, keeping channels, masks, labels and zips in memory between steps. "
+            + "Each step uses the parameters it was last run with, or those of a loaded profile. Only data.txt and the marker images are written "
+            + "unless intermediates are saved.<br><br>"
+            + "Segment label uses the settings of <i>Segment Label</i> (roi -> myo/endo by default). "
+            + "Sublayers are only segmented for images with a mask_myo_compact.tif created with "
+            + "<i>Draw Custom Mask</i>, which always splits the myo label into myo_compact and myo_trabecular first.";
+
+    @Parameter(label = "Save profile...", callback = "saveProfile")
+    private Button saveProfileButton;
+
+    @Parameter(label = "Load profile...", callback = "loadProfile")
+    private Button loadProfileButton;
+
+    @Parameter(label = "Run", callback = "runAll")
+    private Button runButton;
+
+    @Parameter
+    CommandService commandService;
+
+    /**
+     * Saves these settings, and the parameters each step was last run with, to
+     * a profile for the experiment.
+     */
+    public void saveProfile() {
+        SaveDialog dialog = new SaveDialog("Save profile", this.selectedDir, "profile", ".properties");
+        if (dialog.getFileName() == null) {
+            return;
+        }
+        List<BatchCommand> commands = new ArrayList<>();
+        commands.add(this);
+        for (BatchCommand command : BatchRunner.createCommands()) {
+            if (!(command instanceof RunPipeline)) {
+                commands.add(command);
+            }
+        }
+        Path path = Paths.get(dialog.getDirectory(), dialog.getFileName());
+        try {
+            Profile.save(path, commands);
+            IJ.log("Saved profile to " + path);
+        } catch (IOException e) {
+            Logger.error("Could not save profile " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads a profile, updating these settings and the parameters the steps
+     * will run with.
+     */
+    public void loadProfile() {
+        OpenDialog dialog = new OpenDialog("Load profile", this.selectedDir, null);
+        if (dialog.getFileName() == null) {
+            return;
+        }
+        Path path = Paths.get(dialog.getDirectory(), dialog.getFileName());
+        try {
+            int numLoaded = Profile.load(path);
+            Profile.apply(this);
+            Defaults.save();
+            IJ.log("Loaded " + numLoaded + " parameters from " + path);
+        } catch (IOException e) {
+            Logger.error("Could not load profile " + path + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    protected ImageContext createContext(Path targetPath, int index, int total) {
+        if (this.saveIntermediates) {
+            return new ImageContext(targetPath, index, total, null, this.exportRoiZips);
+        }
+        return new ImageContext(targetPath, index, total, Arrays.asList("", "marker"), this.exportRoiZips);
+    }
+
+    @Override
+    public boolean savesRois() {
+        return true;
+    }
+
+    @Override
+    public Map<String, String> getParameters() {
+        Map<String, String> parameters = super.getParameters();
+        for (BatchCommand stage : this.stages) {
+            String prefix = stage.getClass().getSimpleName() + ".";
+            stage.getParameters().forEach((name, value) -> parameters.put(prefix + name, value));
+        }
+        return parameters;
+    }
+
+    @Override
+    public void execute(List<Path> targetPaths) {
+        this.stages.clear();
+        this.cleanChannels = this.createStage(new CleanChannels(), this.runCleanChannels);
+        this.createMask = this.createStage(new CreateMask(), this.runCreateMasks);
+        this.createNuclearLabel = this.createStage(new CreateNuclearLabel(), this.runNuclearLabel);
+        if (this.runNuclearLabel) {
+            this.createNuclearLabel.commandService = this.commandService;
+            this.createNuclearLabel.prepare();
+        }
+        this.segmentLabel = this.createStage(new SegmentLabel(), this.runSegmentLabel);
+        this.segmentSublayers = this.createStage(new SegmentSublayers(), this.runSublayers);
+        this.quantify = this.createStage(new Quantify(), this.runQuantify);
+        if (this.runQuantify) {
+            this.quantify.prepare();
+        }
+        super.execute(targetPaths);
+    }
+
+    /**
+     * Runs each of the selected steps on an image folder.
+     */
+    public void process(ImageContext context) {
+        try {
+            if (this.runCleanChannels) {
+                context.timeStage("CleanChannels", () -> this.cleanChannels.process(context));
+            }
+            if (this.runCreateMasks) {
+                for (String channel : this.maskChannels.split(",")) {
+                    context.timeStage("CreateMask", () -> this.createMask.createMask(context, channel.trim()));
+                }
+            }
+            if (this.runNuclearLabel) {
+                context.timeStage("CreateNuclearLabel", () -> this.createNuclearLabel.process(context));
+            }
+            if (this.runSegmentLabel) {
+                context.timeStage("SegmentLabel", () -> this.segmentLabel.process(context));
+            }
+            if (this.runSublayers) {
+                if (context.exists("masks", "mask_myo_compact.tif")) {
+                    context.timeStage("SegmentSublayers", () -> {
+                        SegmentLabel.segmentLabel(context, "mask_myo_compact.tif", "myo", "myo_compact",
+                                "myo_trabecular", false);
+                        this.segmentSublayers.process(context);
+                    });
+                } else {
+                    Logger.warn("No compact mask found, skipping sublayers for image at " + context.getBasePath());
+                }
+            }
+            if (this.runQuantify) {
+                context.timeStage("Quantify", () -> this.quantify.process(context));
+            }
+        } finally {
+            context.clear();
+        }
+    }
+
+    /**
+     * Prepares a step to run under this pipeline, logging its parameters.
+     *
+     * @param stage   the command instance for the step.
+     * @param enabled whether the step is selected.
+     * @return the prepared step.
+     */
+    private <T extends BatchCommand> T createStage(T stage, boolean enabled) {
+        stage.selectedDir = this.selectedDir;
+        stage.filePattern = this.filePattern;
+        stage.numWorkers = this.numWorkers;
+        stage.exportRoiZips = this.exportRoiZips;
+        if (enabled) {
+            Logger.logProcess(stage);
+            this.stages.add(stage);
+        }
+        return stage;
+    }
+
+}
@@ -3,13 +3,20 @@ package org.gdmn.imagej.process;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
+import ij.measure.Calibration;
 import ij.plugin.LutLoader;
 import ij.plugin.filter.ThresholdToSelection;
-import ij.plugin.frame.RoiManager;
 import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import org.gdmn.imagej.utils.BatchCommand;
 import org.gdmn.imagej.utils.Defaults;
-import org.gdmn.imagej.utils.Filer;
+import org.gdmn.imagej.utils.ImageContext;
+import org.gdmn.imagej.utils.LabelMeasurements;
+import org.gdmn.imagej.utils.Masks;
+import org.gdmn.imagej.utils.RoiSet;
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
 import org.scijava.plugin.Menu;
@@ -25,6 +32,7 @@ import org.scijava.widget.Button;
         @Menu(label = "Segment Label", weight = 25)
 })
 public class SegmentLabel extends BatchCommand {
+    private static final double EDGE_TOLERANCE = 1e-6;
 
     @Parameter(visibility = ItemVisibility.MESSAGE)
     private String header = "<h2 style='width: 500px'>Segment label images</h2>";
@@ -86,87 +94,161 @@ public class SegmentLabel extends BatchCommand {
         }
     }
 
+    @Override
+    public boolean savesRois() {
+        return true;
+    }
+
     /** Running segmentLabel according to specified type. */
-    public void process(String basePath) {
+    public void process(ImageContext context) {
         if (innerLabel.equals("coronaries")) {
-            segmentLabel(basePath, "mask_" + segmentationMask + ".tif", baseLabel, innerLabel, outerLabel, true);
+            segmentLabel(context, "mask_" + segmentationMask + ".tif", baseLabel, innerLabel, outerLabel, true);
         } else {
-            segmentLabel(basePath, "mask_" + segmentationMask + ".tif", baseLabel, innerLabel, outerLabel, false);
+            segmentLabel(context, "mask_" + segmentationMask + ".tif", baseLabel, innerLabel, outerLabel, false);
         }
     }
 
     /**
      * Segments a nuclei label into sublabels on a mask.
      *
-     * @param basePath   the path to the image folder.
+     * @param context    the context of the image folder.
      * @param baseMask   the mask to segment on.
      * @param baseLabel  the base label.
      * @param innerLabel the name of the output inner label.
      * @param outerLabel the name of the output outer label.
+     * @param closeMask  whether to fill holes in the mask first.
      */
-    public static void segmentLabel(String basePath, String baseMask, String baseLabel, String innerLabel,
+    public static void segmentLabel(ImageContext context, String baseMask, String baseLabel, String innerLabel,
             String outerLabel, boolean closeMask) {
-        // Opening mask and roi managers.
-        ImagePlus maskImp = new ImagePlus(Filer.getPath(basePath, "masks", baseMask));
-        Roi mask;
-        if (closeMask) {
-            maskImp.killRoi();
-            IJ.run(maskImp, "Fill Holes", "");
-            maskImp.getProcessor().setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
-            mask = ThresholdToSelection.run(maskImp);
-        } else {
-            mask = maskImp.getRoi();
-        }
-        if (mask == null) {
-            IJ.log("Mask not found: " + baseMask);
-            return;
+        segmentLabels(context, baseLabel, Arrays.asList(baseMask), Arrays.asList(innerLabel, outerLabel), closeMask);
+    }
+
+    /**
+     * Segments a nuclei label into any number of sublabels on an ordered list of
+     * masks. Each nucleus is assigned to the first mask containing its
+     * centroid, or to the last label if no mask contains it. Empty masks
+     * contain no nuclei, leaving their labels empty. The base label is
+     * read once and every output label is written in one pass.
+     *
+     * @param context    the context of the image folder.
+     * @param baseLabel  the base label.
+     * @param masks      the masks to segment on, in order of precedence.
+     * @param labels     the names of the output labels, one per mask followed by
+     *                   the label for the remaining nuclei.
+     * @param closeMask  whether to fill holes in the masks first.
+     */
+    public static void segmentLabels(ImageContext context, String baseLabel, List<String> masks,
+            List<String> labels, boolean closeMask) {
+        if (labels.size() != masks.size() + 1) {
+            throw new IllegalArgumentException("Expected " + (masks.size() + 1) + " labels, got " + labels.size());
         }
 
-        // Closing mask image and creating ROI Managers.
-        maskImp.close();
-        RoiManager baseRoiManager = new RoiManager(false);
-        final RoiManager altRoiManager = new RoiManager(false);
-        baseRoiManager.runCommand("Open", Filer.getPath(basePath, "zips", "zip_" + baseLabel + ".zip"));
-
-        // Setting up output labels.
-        ImagePlus baseImp = new ImagePlus(Filer.getPath(basePath, "labels", "label_" + baseLabel + ".tif"));
-        ImageProcessor baseIp = baseImp.getProcessor();
-        baseIp = baseImp.getProcessor();
-        baseIp.setColor(0);
-        baseIp.fill();
-        ImagePlus altImp = baseImp.duplicate();
-        ImageProcessor altIp = altImp.getProcessor();
-
-        // Checking centroids.
-        Roi[] rois = baseRoiManager.getRoisAsArray();
-        for (int i = baseRoiManager.getCount() - 1; i >= 0; i--) {
-            double[] centroid = rois[i].getContourCentroid();
-            if (mask.containsPoint(centroid[0], centroid[1])) {
-                baseIp.setColor(i + 1);
-                baseIp.fill(rois[i]);
+        // Opening and rasterizing each mask once.
+        int width = 0;
+        int height = 0;
+        Calibration cal = null;
+        Roi[] maskRois = new Roi[masks.size()];
+        BitSet[] maskPixels = new BitSet[masks.size()];
+        for (int m = 0; m < masks.size(); m++) {
+            ImagePlus maskImp = context.openImage("masks", masks.get(m));
+            Roi mask;
+            if (closeMask) {
+                maskImp.killRoi();
+                IJ.run(maskImp, "Fill Holes", "");
+                maskImp.getProcessor().setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+                mask = ThresholdToSelection.run(maskImp);
             } else {
-                baseRoiManager.select(i);
-                baseRoiManager.runCommand("Delete");
-                altRoiManager.addRoi(rois[i]);
-                altIp.setColor(i + 1);
-                altIp.fill(rois[i]);
+                mask = Masks.getRoi(maskImp);
+            }
+            width = maskImp.getWidth();
+            height = maskImp.getHeight();
+            cal = maskImp.getCalibration();
+            maskRois[m] = mask;
+            // Leaving empty masks (i.e. a sublayer band narrower than a pixel) to contain no nuclei.
+            maskPixels[m] = mask == null ? new BitSet() : rasterize(mask, width, height);
+            maskImp.close();
+        }
+
+        // Assigning base ROIs to the first mask containing their centroid.
+        RoiSet rois = context.openRois("zip_" + baseLabel + ".zip").withIds();
+        int[] ids = rois.getIds();
+        int[] assigned = new int[rois.size()];
+        for (int i = 0; i < rois.size(); i++) {
+            double[] centroid = rois.get(i).getContourCentroid();
+            int x = (int) Math.floor(centroid[0]);
+            int y = (int) Math.floor(centroid[1]);
+            boolean onEdge = isOnEdge(centroid[0]) || isOnEdge(centroid[1]);
+            boolean inBounds = x >= 0 && y >= 0 && x < width && y < height;
+            int m = 0;
+            while (m < masks.size()) {
+                // Leaving centroids on a pixel edge to the exact geometric test.
+                boolean inside = onEdge ? maskRois[m] != null && maskRois[m].containsPoint(centroid[0], centroid[1])
+                        : inBounds && maskPixels[m].get(y * width + x);
+                if (inside) {
+                    break;
+                }
+                m++;
+            }
+            assigned[i] = m;
+        }
+        RoiSet[] outputRois = rois.partition(assigned, labels.size());
+
+        // Filling all labels from one rasterization, earlier ROIs drawn on top.
+        LabelMeasurements measurements = new LabelMeasurements(rois.reverse().toArray(), width, height);
+
+        // Setting colours to the nucleus ids and saving.
+        for (int l = 0; l < labels.size(); l++) {
+            int[] values = new int[rois.size()];
+            for (int i = 0; i < rois.size(); i++) {
+                values[rois.size() - 1 - i] = assigned[i] == l ? ids[i] : 0;
             }
+            saveLabel(context, measurements.createLabelImage(values), cal, labels.get(l));
+            context.saveRois(outputRois[l], "zip_" + labels.get(l) + ".zip");
+            context.addCount("nuclei_" + labels.get(l), outputRois[l].size());
         }
+    }
 
-        // Setting colours and saving.
-        baseIp.setColorModel(LutLoader.getLut("glasbey on dark"));
-        baseImp.setProcessor(baseIp);
-        Filer.save(baseImp, basePath, "labels", "label_" + innerLabel + ".tif");
-        baseImp.close();
-        baseRoiManager.runCommand("Save", Filer.getPath(basePath, "zips", "zip_" + innerLabel + ".zip"));
-        baseRoiManager.close();
-
-        altIp.setColorModel(LutLoader.getLut("glasbey on dark"));
-        altImp.setProcessor(altIp);
-        Filer.save(altImp, basePath, "labels", "label_" + outerLabel + ".tif");
-        altImp.close();
-        altRoiManager.runCommand("Save", Filer.getPath(basePath, "zips", "zip_" + outerLabel + ".zip"));
-        altRoiManager.close();
+    /**
+     * Rasterizes a mask ROI into a bitset for constant-time point lookups.
+     *
+     * @param mask   the mask ROI.
+     * @param width  the width of the image.
+     * @param height the height of the image.
+     * @return the pixels inside the mask, in row-major order.
+     */
+    private static BitSet rasterize(Roi mask, int width, int height) {
+        BitSet pixels = new BitSet(width * height);
+        Rectangle bounds = mask.getBounds();
+        ImageProcessor maskIp = mask.getMask();
+        for (int y = Math.max(0, bounds.y); y < Math.min(height, bounds.y + bounds.height); y++) {
+            for (int x = Math.max(0, bounds.x); x < Math.min(width, bounds.x + bounds.width); x++) {
+                if (maskIp == null || maskIp.get(x - bounds.x, y - bounds.y) != 0) {
+                    pixels.set(y * width + x);
+                }
+            }
+        }
+        return pixels;
+    }
+
+    private static boolean isOnEdge(double coordinate) {
+        double fraction = coordinate - Math.floor(coordinate);
+        return fraction < EDGE_TOLERANCE || fraction > 1 - EDGE_TOLERANCE;
+    }
+
+    /**
+     * Saves a label image with the glasbey LUT.
+     *
+     * @param context the context of the image folder.
+     * @param ip      the label image.
+     * @param cal     the calibration of the image.
+     * @param label   the name of the label.
+     */
+    private static void saveLabel(ImageContext context, ImageProcessor ip, Calibration cal, String label) {
+        ip.setColorModel(LutLoader.getLut("glasbey on dark"));
+        ImagePlus imp = new ImagePlus("label_" + label + ".tif", ip);
+        imp.setCalibration(cal);
+        context.saveImage(imp, "labels", "label_" + label + ".tif");
+        imp.close();
     }
 
 }
@@ -2,13 +2,17 @@ package org.gdmn.imagej.process;
 
 import ij.ImagePlus;
 import ij.gui.Roi;
-import ij.measure.Measurements;
-import ij.plugin.RoiEnlarger;
+import ij.plugin.filter.EDM;
 import ij.plugin.filter.ThresholdToSelection;
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.List;
 import org.gdmn.imagej.utils.BatchCommand;
 import org.gdmn.imagej.utils.Defaults;
-import org.gdmn.imagej.utils.Filer;
+import org.gdmn.imagej.utils.ImageContext;
+import org.gdmn.imagej.utils.Logger;
+import org.gdmn.imagej.utils.Masks;
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
 import org.scijava.plugin.Menu;
@@ -27,116 +31,136 @@ public class SegmentSublayers extends BatchCommand {
     @Parameter(visibility = ItemVisibility.MESSAGE)
     private String header = "<h2 style='width: 500px'>Segment into sublayers</h2>";
 
-    @Parameter(label = "Number of sublayers:")
+    @Parameter(label = "Number of sublayers:", min = "2", max = "10")
     private int numSublayers = Integer.parseInt(Defaults.get("numSublayers", "3"));
 
     @Parameter(visibility = ItemVisibility.MESSAGE, persist = false)
     private String info = "<p style='width: 500px;'>"
             + "Segments the trabecular myocardium and endocardium (if present) into n sublayers (i.e. base/middle/apex/etc.). "
-            + "Currently only n=2 and n=3 sublayers are supported. ";
+            + "Sublayers are named base, middle and apex, with middle layers numbered when n is greater than 3. ";
 
     @Parameter(label = "Run", callback = "runAll")
     private Button runButton;
 
+    @Override
+    public boolean savesRois() {
+        return true;
+    }
+
     /**
      * Runs sublayer segmentation.
      */
-    public void process(String basePath) {
+    public void process(ImageContext context) {
         // Creating layer boundary masks.
-        subSegment(basePath, "mask_myo_compact.tif", "label_myo_trabecular.tif", "sublayer_myo_trabecular");
+        subSegment(context, "mask_myo_compact.tif", "label_myo_trabecular.tif", "sublayer_myo_trabecular");
 
-        // Subsegmenting and saving labels.
-        if (numSublayers == 2) {
-            SegmentLabel.segmentLabel(basePath, "sublayer_myo_trabecular_1.tif", "myo_trabecular",
-                    "myo_trabecular_base",
-                    "myo_trabecular_apex", false);
-            SegmentLabel.segmentLabel(basePath, "sublayer_myo_trabecular_1.tif", "endo", "endo_base",
-                    "endo_apex", false);
-        } else if (numSublayers == 3) {
-            SegmentLabel.segmentLabel(basePath, "sublayer_myo_trabecular_1.tif", "myo_trabecular",
-                    "myo_trabecular_base",
-                    "tmp_middle_apex", false);
-            SegmentLabel.segmentLabel(basePath, "sublayer_myo_trabecular_2.tif", "tmp_middle_apex",
-                    "myo_trabecular_middle",
-                    "myo_trabecular_apex", false);
-            SegmentLabel.segmentLabel(basePath, "sublayer_myo_trabecular_1.tif", "endo", "endo_base",
-                    "tmp_middle_apex", false);
-            SegmentLabel.segmentLabel(basePath, "sublayer_myo_trabecular_2.tif", "tmp_middle_apex", "endo_middle",
-                    "endo_apex", false);
-            Filer.delete(basePath, "labels", "label_tmp_middle_apex.tif");
-            Filer.delete(basePath, "zips", "zip_tmp_middle_apex.zip");
+        // Subsegmenting and saving labels in one pass per tissue.
+        List<String> masks = new ArrayList<>();
+        for (int i = 1; i < this.numSublayers; i++) {
+            masks.add("sublayer_myo_trabecular_" + i + ".tif");
         }
+        SegmentLabel.segmentLabels(context, "myo_trabecular", masks, this.getLabels("myo_trabecular"), false);
+        SegmentLabel.segmentLabels(context, "endo", masks, this.getLabels("endo"), false);
     }
 
     /**
-     * Segments a tissue nuclei label into spatial sublayers.
+     * Gets the sublayer label names of a tissue, from base to apex.
      *
-     * @param basePath  the path to the image folder.
+     * @param tissue the name of the tissue label.
+     * @return the sublayer label names.
+     */
+    private List<String> getLabels(String tissue) {
+        List<String> labels = new ArrayList<>();
+        for (int i = 1; i <= this.numSublayers; i++) {
+            if (i == 1) {
+                labels.add(tissue + "_base");
+            } else if (i == this.numSublayers) {
+                labels.add(tissue + "_apex");
+            } else if (this.numSublayers == 3) {
+                labels.add(tissue + "_middle");
+            } else {
+                labels.add(tissue + "_middle_" + (i - 1));
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Segments a tissue nuclei label into spatial sublayers. A single Euclidean
+     * distance map from the base mask gives the distance at which the layers
+     * cover 95% of the labelled area, and each layer is then cut from the map
+     * as an equal band of distances.
+     *
+     * @param context   the context of the image folder.
      * @param baseMask  the name of the base layer mask.
      * @param baseLabel the label to use for segmentation.
      * @param sublayer  the name of the sublayer output.
      */
-    private void subSegment(String basePath, String baseMask, String baseLabel, String sublayer) {
-        // Opening mask.
-        ImagePlus maskImp = new ImagePlus(Filer.getPath(basePath, "masks", baseMask));
-        final Roi mask = maskImp.getRoi();
+    private void subSegment(ImageContext context, String baseMask, String baseLabel, String sublayer) {
+        // Opening mask and marking it as background for the distance map.
+        ImagePlus maskImp = context.openImage("masks", baseMask);
+        final Roi mask = Masks.getRoi(maskImp);
+        if (mask == null) {
+            Logger.warn("Mask not found: " + baseMask);
+            return;
+        }
         ImageProcessor maskIp = maskImp.getProcessor();
+        int width = maskIp.getWidth();
+        int height = maskIp.getHeight();
         maskImp.deleteRoi();
-        maskIp.setColor(0);
+        maskIp.setColor(255);
         maskIp.fill();
+        maskIp.setColor(0);
+        maskIp.fill(mask);
+        float[] distances = (float[]) new EDM().makeFloatEDM(maskIp, 0, false).getPixels();
 
-        // Opening label and getting total non-zero area.
-        ImagePlus labelImp = new ImagePlus(Filer.getPath(basePath, "labels", baseLabel));
-        double totalArea = labelImp.getStatistics(Measurements.AREA_FRACTION).areaFraction
-                * labelImp.getStatistics().area;
-        labelImp.setRoi(mask);
-
-        // Initialising loop variables.
-        double expansion = 0;
-        double stepSize = 128;
-
-        // Looping through to get 95% coverage.
-        while (stepSize >= 1) {
-            double selectedArea = 0;
-            while (selectedArea < 0.95 * totalArea) {
-                expansion += stepSize;
-                Roi enlargedRoi = RoiEnlarger.enlarge(mask, expansion);
-                selectedArea = this.getArea(labelImp, enlargedRoi);
+        // Building a histogram of distances under the label.
+        ImagePlus labelImp = context.openImage("labels", baseLabel);
+        ImageProcessor labelIp = labelImp.getProcessor();
+        int[] histogram = new int[(int) Math.ceil(Math.hypot(width, height)) + 2];
+        int totalArea = 0;
+        for (int i = 0; i < distances.length; i++) {
+            if (labelIp.getf(i) != 0) {
+                histogram[Math.min(histogram.length - 1, (int) Math.ceil(distances[i]))]++;
+                totalArea++;
             }
-            expansion = expansion - stepSize;
-            stepSize = stepSize * 0.5;
         }
-        expansion += 1;
+        labelImp.close();
+
+        // Getting the smallest whole distance covering 95% of the label.
+        int expansion = 0;
+        int coveredArea = histogram[0];
+        while (coveredArea < 0.95 * totalArea && expansion < histogram.length - 1) {
+            expansion++;
+            coveredArea += histogram[expansion];
+        }
+        expansion = Math.max(expansion, 1);
 
-        // Loop through layers to create output masks.
+        // Cutting each layer as a band of distances, the last taking all unclassified area.
         for (int i = 1; i <= this.numSublayers; i++) {
-            // Filling outer ROI white.
-            ImagePlus outputMask = new ImagePlus("Mask", maskIp.duplicate());
-            Roi enlargedRoi = RoiEnlarger.enlarge(mask, (expansion * i / this.numSublayers));
-            outputMask.setRoi(enlargedRoi);
-            ImageProcessor ip = outputMask.getProcessor();
-            ip.setColor(255);
-            ip.fill(enlargedRoi);
-            // If final layer, fill all unclassified area.
-            if (i == this.numSublayers) {
-                ip.fill();
+            double inner = (double) expansion * (i - 1) / this.numSublayers;
+            double outer = i == this.numSublayers ? Double.POSITIVE_INFINITY : (double) expansion * i / this.numSublayers;
+            byte[] pixels = new byte[distances.length];
+            for (int j = 0; j < distances.length; j++) {
+                if (distances[j] > inner && distances[j] <= outer) {
+                    pixels[j] = (byte) 255;
+                }
             }
-            // Filling inner ROI black and drawing roi.
-            Roi innerRoi = RoiEnlarger.enlarge(mask, (expansion * (i - 1) / this.numSublayers));
-            outputMask.setRoi(innerRoi);
-            ip.setColor(0);
-            ip.fill(innerRoi);
+            ImagePlus outputMask = new ImagePlus("Mask", new ByteProcessor(width, height, pixels));
+            outputMask.setCalibration(maskImp.getCalibration());
+            ImageProcessor ip = outputMask.getProcessor();
             ip.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
             Roi roi = ThresholdToSelection.run(outputMask);
+            ip.resetThreshold();
+            if (roi == null) {
+                Logger.warn("Sublayer " + i + " of " + this.numSublayers + " is empty, as the layers span only "
+                        + expansion + " px: " + context.getBasePath());
+            }
             outputMask.setRoi(roi);
             // Saving mask.
-            Filer.save(outputMask, basePath, "masks", sublayer + "_" + i + ".tif");
+            context.saveImage(outputMask, "masks", sublayer + "_" + i + ".tif");
             outputMask.close();
         }
-    }
-
-    private double getArea(ImagePlus imp, Roi roi) {
-        imp.setRoi(roi);
-        return imp.getStatistics(Measurements.AREA_FRACTION).areaFraction * imp.getStatistics(Measurements.AREA).area;
+        maskImp.close();
     }
 }
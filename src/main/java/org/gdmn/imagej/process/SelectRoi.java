@@ -11,6 +11,7 @@ import ij.plugin.ZProjector;
 import ij.process.ImageProcessor;
 import org.gdmn.imagej.utils.BatchCommand;
 import org.gdmn.imagej.utils.Filer;
+import org.gdmn.imagej.utils.ImageContext;
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
 import org.scijava.plugin.Menu;
@@ -38,19 +39,25 @@ public class SelectRoi extends BatchCommand {
     @Parameter(label = "Run", callback = "runAll")
     private Button runButton;
 
-    public void process(String basePath) {
-        selectRoi(basePath);
+    public void process(ImageContext context) {
+        selectRoi(context.getBasePath(), context.getFilePath());
+    }
+
+    @Override
+    public boolean isSequential() {
+        return true;
     }
 
     /**
      * Prompts the user to select a roi and saves to roi.tif.
      *
      * @param basePath the path to the image folder.
+     * @param filePath the path to the source image.
      */
-    public void selectRoi(String basePath) {
+    public void selectRoi(String basePath, String filePath) {
 
         // Opening image and requesting drawing.
-        ImagePlus imp = new ImagePlus(this.filePath);
+        ImagePlus imp = new ImagePlus(filePath);
         imp.setOpenAsHyperStack(true);
         imp.show();
         IJ.setTool(Toolbar.POLYGON);
@@ -2,11 +2,19 @@ package org.gdmn.imagej.utils;
 
 import ij.IJ;
 import ij.io.DirectoryChooser;
+import java.awt.Desktop;
+import java.awt.GraphicsEnvironment;
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
 import org.scijava.command.Interactive;
@@ -17,8 +25,7 @@ import org.scijava.widget.Button;
  * Overarching BatchCommand class extended by each of the plugin commands.
  */
 public abstract class BatchCommand implements Command, Interactive {
-
-    protected String filePath;
+    private static final int NOT_SEARCHED = -2;
 
     @Parameter(visibility = ItemVisibility.MESSAGE)
     private String fileChooserMessage = "<h2 style='width: 500px'>Select the parent directory and target file pattern.</h2>";
@@ -35,7 +42,22 @@ public abstract class BatchCommand implements Command, Interactive {
     @Parameter(label = "File pattern:", persist = false, callback = "updateCollectorInfo")
     public String filePattern = Defaults.get("filePattern", "roi.tif");
 
-    private int numTargetFiles = Filer.getBasePaths(this.selectedDir, this.filePattern).size();
+    @Parameter(label = "Find images", callback = "findImages")
+    private Button findImages;
+
+    @Parameter(label = "Worker threads:", persist = false, min = "1")
+    public int numWorkers = Integer.parseInt(
+            Defaults.get("numWorkers", String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+    @Parameter(label = "Skip up-to-date images", persist = false)
+    public boolean skipUpToDate = Boolean.parseBoolean(Defaults.get("skipUpToDate", "true"));
+
+    @Parameter(label = "Also save ROI zips:", persist = false)
+    public boolean exportRoiZips = Boolean.parseBoolean(Defaults.get("exportRoiZips", "true"));
+
+    private int numFailed;
+
+    private int numTargetFiles = NOT_SEARCHED;
 
     @Parameter(visibility = ItemVisibility.MESSAGE, persist = false)
     private String targetMessage = setTargetMessage();
@@ -50,26 +72,48 @@ public abstract class BatchCommand implements Command, Interactive {
         if (chosenDir != null && chosenDir.length() != 0) {
             this.selectedDir = dir.getDirectory();
             Defaults.set("dir", this.selectedDir);
+            Defaults.save();
+            this.findImages();
         }
     }
 
     /**
-     * Opens the target dir in the user's file explorer.
+     * Opens the target dir in the user's file manager.
      */
     public void openDir() {
-        Path dirPath = Paths.get(this.selectedDir);
-        String[] array = { "explorer.exe", dirPath.toString() };
+        File dir = Paths.get(this.selectedDir).toFile();
         try {
-            Runtime.getRuntime().exec(array);
+            if (Desktop.isDesktopSupported() && Desktop.getDesktop().isSupported(Desktop.Action.OPEN)) {
+                Desktop.getDesktop().open(dir);
+            } else {
+                String opener = IJ.isWindows() ? "explorer.exe" : IJ.isMacOSX() ? "open" : "xdg-open";
+                Runtime.getRuntime().exec(new String[] { opener, dir.getPath() });
+            }
         } catch (IOException e) {
             IJ.log(e.getMessage());
         }
     }
 
     /**
-     * Updates the number of files detected by the plugin in the UI.
+     * Updates the number of files detected by the plugin in the UI as the
+     * directory or pattern is typed. Directories that have not been searched
+     * yet are left until they are chosen, so typing a path does not index
+     * every directory along the way.
      */
     public void updateCollectorInfo() {
+        if (Filer.isIndexed(this.selectedDir)) {
+            this.findImages();
+        } else {
+            this.numTargetFiles = NOT_SEARCHED;
+            this.targetMessage = setTargetMessage();
+        }
+    }
+
+    /**
+     * Searches the chosen directory and updates the number of files detected
+     * by the plugin in the UI.
+     */
+    public void findImages() {
         this.numTargetFiles = Filer.getBasePaths(this.selectedDir, this.filePattern).size();
         this.targetMessage = setTargetMessage();
     }
@@ -84,47 +128,197 @@ public abstract class BatchCommand implements Command, Interactive {
                     + " image which matches these parameters.</p>";
         } else if (this.numTargetFiles == 0) {
             message = "<p style='color:#bb0000'>No matching images found.</p>";
+        } else if (this.numTargetFiles == NOT_SEARCHED) {
+            message = "<p>Click Find images to search this directory.</p>";
         } else {
             message = "<p style='color:#bb0000'>An error occurred.</p>";
         }
         return message;
     }
 
-    public abstract void process(String basePath);
+    public abstract void process(ImageContext context);
+
+    /**
+     * Whether the command must process images one at a time. Commands that
+     * require user interaction (dialogs, drawing) should override this.
+     *
+     * @return true if images must be processed sequentially.
+     */
+    public boolean isSequential() {
+        return false;
+    }
+
+    /**
+     * Whether runs of the command are recorded in each folder's manifest so
+     * that up-to-date folders can be skipped.
+     *
+     * @return true if the command supports incremental runs.
+     */
+    public boolean isIncremental() {
+        return true;
+    }
+
+    /**
+     * Whether the command saves ROI sets, whose zips are controlled by the
+     * exportRoiZips setting.
+     *
+     * @return true if the command saves ROI sets.
+     */
+    public boolean savesRois() {
+        return false;
+    }
+
+    /**
+     * Gets the parameter values that determine the outputs of the command, used
+     * to decide whether a previous run is still up to date.
+     *
+     * @return the parameter values keyed by name.
+     */
+    public Map<String, String> getParameters() {
+        Map<String, String> parameters = Logger.getParameters(this);
+        if (this.savesRois()) {
+            parameters.put("exportRoiZips", String.valueOf(this.exportRoiZips));
+        }
+        return parameters;
+    }
+
+    /**
+     * Creates the context for a single image of the run.
+     *
+     * @param targetPath the path to the file matching the file pattern.
+     * @param index      the index of the image within the run.
+     * @param total      the total number of images in the run.
+     * @return the image context.
+     */
+    protected ImageContext createContext(Path targetPath, int index, int total) {
+        return new ImageContext(targetPath, index, total, this.exportRoiZips);
+    }
 
     /**
      * Loops through the list of selected files and runs the command on each.
      */
     public void runAll() {
-        Defaults.set("dir", this.selectedDir);
-        Defaults.set("filePattern", this.filePattern);
-
         // Specifying self as the command instance.
         BatchCommand self = this;
-        Logger.logProcess(self);
-
-        // Getting target dir and files.
-        List<Path> basePaths = new ArrayList<Path>();
-        Filer.getBasePaths(self.selectedDir, self.filePattern)
-                .forEach(path -> basePaths.add(path));
-        int n = basePaths.size();
 
         // Creating a new thread to process the images.
         Thread runThread = new Thread(new Runnable() {
             public void run() {
-                for (int i = 0; i < n; i++) {
-                    IJ.showStatus("!Processing image " + (i + 1) + " of " + n + ".");
-                    self.filePath = basePaths.get(i).toString();
-                    self.process(basePaths.get(i).getParent().toString());
+                try {
+                    self.runBatch();
+                } catch (RuntimeException e) {
+                    Logger.error(self.getClass().getSimpleName() + " failed: " + e.getMessage());
                 }
-                IJ.showStatus("!Command finished: " + self.getClass().getSimpleName() + " on n=" + n + " images.");
             }
         });
         runThread.start();
     }
 
+    /**
+     * Runs the command on each of the selected files, blocking until all images
+     * have been processed.
+     *
+     * @return the number of images that failed.
+     */
+    public int runBatch() {
+        Defaults.set("dir", this.selectedDir);
+        Defaults.set("filePattern", this.filePattern);
+        Defaults.set("numWorkers", this.numWorkers);
+        Defaults.set("skipUpToDate", this.skipUpToDate);
+        Defaults.set("exportRoiZips", this.exportRoiZips);
+        Logger.logProcess(this);
+
+        // Getting target dir and files.
+        List<Path> basePaths = new ArrayList<Path>();
+        Filer.getBasePaths(this.selectedDir, this.filePattern, true)
+                .forEach(path -> basePaths.add(path));
+        this.execute(basePaths);
+        return this.numFailed;
+    }
+
+    /**
+     * Runs the command on each of the target files using the worker pool,
+     * blocking until all images have been processed.
+     *
+     * @param targetPaths the paths to the files matching the file pattern.
+     */
+    public void execute(List<Path> targetPaths) {
+        int n = targetPaths.size();
+        int numThreads = this.isSequential() ? 1 : Math.max(1, Math.min(this.numWorkers, n));
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        Map<String, String> parameters = this.getParameters();
+        String entryId = Manifest.entryId(this.getClass().getName(), parameters);
+        RunReport report = new RunReport(this.getClass().getName(), numThreads);
+
+        // Submitting each image with its own context.
+        for (int i = 0; i < n; i++) {
+            ImageContext context = this.createContext(targetPaths.get(i), i, n);
+            executor.submit(() -> {
+                long startTime = System.nanoTime();
+                Metrics.takeThreadBytes();
+                String status = RunReport.PROCESSED;
+                try {
+                    if (this.isIncremental() && this.skipUpToDate
+                            && Manifest.read(context.getBasePath()).isUpToDate(entryId, context.getBasePath())) {
+                        skipped.incrementAndGet();
+                        status = RunReport.SKIPPED;
+                    } else {
+                        this.process(context);
+                        if (this.isIncremental() && !context.getOutputs().isEmpty()) {
+                            Manifest manifest = Manifest.read(context.getBasePath());
+                            manifest.record(entryId, parameters, context);
+                            manifest.write();
+                        }
+                    }
+                } catch (Throwable e) {
+                    // Counting errors too (i.e. out of memory), which the executor would otherwise swallow.
+                    failed.incrementAndGet();
+                    status = RunReport.FAILED;
+                    Logger.error("Failed to process image at " + context.getBasePath() + ": " + e);
+                }
+                report.addImage(context, status, System.nanoTime() - startTime, Metrics.takeThreadBytes());
+                int done = completed.incrementAndGet();
+                IJ.showStatus("!Processed image " + done + " of " + n + " (" + numThreads + " workers).");
+                IJ.showProgress(done, n);
+            });
+        }
+
+        // Waiting for workers to finish.
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        this.numFailed = failed.get();
+        report.finish();
+        Logger.logReport(this, report);
+        IJ.showStatus("!Command finished: " + this.getClass().getSimpleName() + " on n=" + n + " images ("
+                + skipped.get() + " up to date, " + this.numFailed + " failed, "
+                + String.format("%.1f", report.getImagesPerMinute()) + " images/min).");
+    }
+
+    /**
+     * Gets the number of images that failed in the last run.
+     *
+     * @return the number of failed images.
+     */
+    public int getNumFailed() {
+        return this.numFailed;
+    }
+
+    /**
+     * Runs the batch with the given parameters when ImageJ is headless (i.e.
+     * with --headless --run). Otherwise the command runs from its Run button.
+     */
     public void run() {
-        // Empty method - command is not runnable via this method.
+        if (GraphicsEnvironment.isHeadless() && !this.isSequential()) {
+            this.runBatch();
+        }
     }
 
 }
@@ -3,18 +3,44 @@ package org.gdmn.imagej.utils;
 import ij.Prefs;
 
 /**
- * Provides static methods to set and get parameter defaults.
+ * Provides static methods to set and get parameter defaults. Defaults are held
+ * in memory as they are set and written to the ImageJ preferences in one batch
+ * by {@link #save()}, once per run rather than once per parameter.
  */
 public class Defaults {
     private static String packageName = "fluoromap";
+    private static boolean persistent = true;
+    private static boolean changed;
 
     public static String get(String key, String fallback) {
         return Prefs.get(packageName + "." + key, fallback);
     }
 
-    public static void set(String key, Object value) {
+    public static synchronized void set(String key, Object value) {
         Prefs.set(packageName + "." + key, value.toString());
-        Prefs.savePreferences();
+        changed = true;
+    }
+
+    /**
+     * Saves the ImageJ preferences if any defaults have been set since the last
+     * save.
+     */
+    public static synchronized void save() {
+        if (persistent && changed) {
+            Prefs.savePreferences();
+            changed = false;
+        }
+    }
+
+    /**
+     * Sets whether defaults are saved to the ImageJ preferences. Headless
+     * runs, which do not load the preferences, keep their defaults in memory so
+     * as not to overwrite the saved preferences.
+     *
+     * @param persist whether to save defaults.
+     */
+    public static synchronized void setPersistent(boolean persist) {
+        persistent = persist;
     }
 
 }
@@ -0,0 +1,177 @@
+package org.gdmn.imagej.utils;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Cached index of the files below a root directory. The directory tree is
+ * walked once, then kept up to date by comparing each directory's modification
+ * time and re-listing only the directories that changed. Only the most
+ * recently used roots are kept, so moving between experiments does not hold
+ * on to the index of every directory searched.
+ */
+public class FileIndex {
+    private static final long REVALIDATE_MILLIS = 2000;
+    private static final int MAX_ROOTS = 4;
+    private static final int MAX_PATTERNS = 16;
+    private static final Map<Path, FileIndex> INDEXES = createLruMap(MAX_ROOTS);
+    private static final Map<String, Pattern> PATTERNS = createLruMap(MAX_PATTERNS);
+
+    private final Path root;
+    private final Map<Path, Directory> directories = new HashMap<>();
+    private List<Path> files = Collections.emptyList();
+    private boolean changed = true;
+    private long validatedAt;
+
+    /** The cached listing of a single directory. */
+    private static class Directory {
+        private long modified;
+        private final List<Path> files = new ArrayList<>();
+        private final List<Path> subDirs = new ArrayList<>();
+    }
+
+    private FileIndex(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Finds the files below a root directory whose names match a pattern. The
+     * pattern is a regular expression in which "*" matches any characters.
+     *
+     * @param root     the top-level directory.
+     * @param pattern  the pattern for the file name (i.e. "roi.tif").
+     * @param validate whether to check for changes even if the index was
+     *                 checked recently.
+     * @return the sorted list of matching files.
+     */
+    public static List<Path> find(Path root, String pattern, boolean validate) {
+        Pattern compiled = PATTERNS.computeIfAbsent(pattern, key -> Pattern.compile(key.replace("*", ".*")));
+        FileIndex index = INDEXES.computeIfAbsent(root.toAbsolutePath().normalize(), FileIndex::new);
+        List<Path> matches = new ArrayList<>();
+        for (Path file : index.getFiles(validate)) {
+            if (compiled.matcher(file.getFileName().toString()).matches()) {
+                matches.add(file);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Whether a root directory has already been indexed, so that finding files
+     * below it does not walk the directory tree.
+     *
+     * @param root the top-level directory.
+     * @return true if the index of the root is cached.
+     */
+    public static boolean isIndexed(Path root) {
+        return INDEXES.containsKey(root.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Drops the cached index of a root directory.
+     *
+     * @param root the top-level directory.
+     */
+    public static void invalidate(Path root) {
+        INDEXES.remove(root.toAbsolutePath().normalize());
+    }
+
+    private static <K, V> Map<K, V> createLruMap(int maxEntries) {
+        return Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return this.size() > maxEntries;
+            }
+        });
+    }
+
+    private synchronized List<Path> getFiles(boolean validate) {
+        long now = System.currentTimeMillis();
+        if (this.directories.isEmpty()) {
+            this.scan(this.root);
+        } else if (validate || now - this.validatedAt > REVALIDATE_MILLIS) {
+            for (Path dir : new ArrayList<>(this.directories.keySet())) {
+                Directory entry = this.directories.get(dir);
+                if (entry != null && dir.toFile().lastModified() != entry.modified) {
+                    this.refresh(dir, entry);
+                }
+            }
+        }
+        this.validatedAt = now;
+
+        // Rebuilding the sorted file list only when the tree has changed.
+        if (this.changed) {
+            List<Path> allFiles = new ArrayList<>();
+            this.directories.values().forEach(entry -> allFiles.addAll(entry.files));
+            Collections.sort(allFiles);
+            this.files = allFiles;
+            this.changed = false;
+        }
+        return this.files;
+    }
+
+    private void scan(Path dir) {
+        Directory entry = list(dir);
+        this.directories.put(dir, entry);
+        this.changed = true;
+        for (Path subDir : entry.subDirs) {
+            this.scan(subDir);
+        }
+    }
+
+    private void refresh(Path dir, Directory previous) {
+        Directory entry = list(dir);
+        this.directories.put(dir, entry);
+        this.changed = true;
+        for (Path subDir : previous.subDirs) {
+            if (!entry.subDirs.contains(subDir)) {
+                this.remove(subDir);
+            }
+        }
+        for (Path subDir : entry.subDirs) {
+            if (!this.directories.containsKey(subDir)) {
+                this.scan(subDir);
+            }
+        }
+    }
+
+    private void remove(Path dir) {
+        Directory entry = this.directories.remove(dir);
+        if (entry != null) {
+            for (Path subDir : entry.subDirs) {
+                this.remove(subDir);
+            }
+        }
+    }
+
+    private static Directory list(Path dir) {
+        Directory entry = new Directory();
+        entry.modified = dir.toFile().lastModified();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    entry.subDirs.add(path);
+                } else if (Files.isRegularFile(path)) {
+                    entry.files.add(path);
+                }
+            }
+        } catch (IOException e) {
+            entry.files.clear();
+            entry.subDirs.clear();
+        }
+        return entry;
+    }
+
+}
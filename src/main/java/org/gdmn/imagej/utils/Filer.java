@@ -2,14 +2,15 @@ package org.gdmn.imagej.utils;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.gui.Roi;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.stream.Stream;
 
 /**
  * Filer class containing static methods for saving and retrieving images and
@@ -19,7 +20,7 @@ public class Filer {
 
     /**
      * Recursively searches a folder for image files that match the specified
-     * pattern.
+     * pattern, using the cached file index.
      *
      * @param pathString the path to the top-level directory containing the images
      *                   for analysis.
@@ -28,16 +29,48 @@ public class Filer {
      * @return the list of paths to each target file.
      */
     public static List<Path> getBasePaths(String pathString, String pattern) {
-        List<Path> filePaths = new ArrayList<Path>();
-        Path parentDir = Paths.get(pathString);
-        try (Stream<Path> paths = Files.walk(parentDir)) {
-            paths.filter(path -> Files.isRegularFile(path))
-                    .filter(path -> path.getFileName().toString().matches(pattern.replace("*", ".*")))
-                    .forEach(path -> filePaths.add(path));
+        return getBasePaths(pathString, pattern, false);
+    }
+
+    /**
+     * Recursively searches a folder for image files that match the specified
+     * pattern, using the cached file index.
+     *
+     * @param pathString the path to the top-level directory containing the images
+     *                   for analysis.
+     * @param pattern    the target regex or string pattern for the base images
+     *                   (i.e. "roi.tif").
+     * @param validate   whether to check the index for changes even if it was
+     *                   checked recently.
+     * @return the list of paths to each target file.
+     */
+    public static List<Path> getBasePaths(String pathString, String pattern, boolean validate) {
+        if (pathString == null || pathString.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        try {
+            return FileIndex.find(Paths.get(pathString), pattern, validate);
         } catch (Exception e) {
             return Collections.emptyList();
         }
-        return filePaths;
+    }
+
+    /**
+     * Whether a folder has already been searched, so that finding the images in
+     * it again is cheap.
+     *
+     * @param pathString the path to the top-level directory.
+     * @return true if the folder is in the file index.
+     */
+    public static boolean isIndexed(String pathString) {
+        if (pathString == null || pathString.trim().isEmpty()) {
+            return false;
+        }
+        try {
+            return FileIndex.isIndexed(Paths.get(pathString));
+        } catch (Exception e) {
+            return false;
+        }
     }
 
     /**
@@ -49,8 +82,160 @@ public class Filer {
      * @param fileName  the file name to save as.
      */
     public static void save(ImagePlus imp, String basePath, String subFolder, String fileName) {
+        long startTime = System.nanoTime();
         String savePath = getPath(basePath, subFolder, fileName);
+        ImageCache.evict(savePath);
         IJ.save(imp, savePath);
+        Metrics.recordWrite("save", new File(savePath).length(), startTime);
+    }
+
+    /**
+     * Opens an image from the specified location, reusing the cached copy if
+     * the file has not changed. Images read from disk are not added to the
+     * cache.
+     *
+     * @param basePath  the path to the image folder.
+     * @param subFolder the sub-folder containing the image.
+     * @param fileName  the name of the image file.
+     * @return the image.
+     */
+    public static ImagePlus openImage(String basePath, String subFolder, String fileName) {
+        return openImage(basePath, subFolder, fileName, false);
+    }
+
+    /**
+     * Opens an image from the specified location, reusing the cached copy if
+     * the file has not changed. Uncompressed single-plane images, as saved by
+     * the other commands, are read in bulk straight from disk, and other
+     * images are opened by ImageJ.
+     *
+     * @param basePath  the path to the image folder.
+     * @param subFolder the sub-folder containing the image.
+     * @param fileName  the name of the image file.
+     * @param cache     whether to cache a copy of an image read from disk, for
+     *                  callers that open it again (i.e. previews).
+     * @return the image.
+     */
+    public static ImagePlus openImage(String basePath, String subFolder, String fileName, boolean cache) {
+        long startTime = System.nanoTime();
+        String filePath = getPath(basePath, subFolder, fileName);
+        ImagePlus imp = ImageCache.getImage(filePath);
+        if (imp != null) {
+            Metrics.recordRead("openImage.cached", 0, startTime);
+            return imp;
+        }
+        try {
+            imp = TiledImage.openImage(filePath);
+        } catch (IOException e) {
+            imp = new ImagePlus(filePath);
+        }
+        if (cache && imp.getProcessor() != null) {
+            ImageCache.putImage(filePath, imp);
+        }
+        Metrics.recordRead("openImage", new File(filePath).length(), startTime);
+        return imp;
+    }
+
+    /**
+     * Opens a set of ROIs, reusing the cached copy if the file has not changed.
+     * ROIs read from disk are not added to the cache.
+     *
+     * @param basePath  the path to the image folder.
+     * @param subFolder the sub-folder containing the zip.
+     * @param fileName  the name of the zip file.
+     * @return the ROIs in the order they were saved.
+     * @throws UncheckedIOException if neither the store nor the zip can be read.
+     */
+    public static RoiSet openRois(String basePath, String subFolder, String fileName) {
+        return openRois(basePath, subFolder, fileName, false);
+    }
+
+    /**
+     * Opens a set of ROIs, reusing the cached copy if the file has not changed.
+     * The compact ROI store is read when present, unless the zip is newer (i.e.
+     * edited in the ROI Manager since).
+     *
+     * @param basePath  the path to the image folder.
+     * @param subFolder the sub-folder containing the zip.
+     * @param fileName  the name of the zip file.
+     * @param cache     whether to cache a copy of ROIs read from disk, for
+     *                  callers that open them again (i.e. previews).
+     * @return the ROIs in the order they were saved.
+     * @throws UncheckedIOException if neither the store nor the zip can be read.
+     */
+    public static RoiSet openRois(String basePath, String subFolder, String fileName, boolean cache) {
+        long startTime = System.nanoTime();
+        File zip = new File(getPath(basePath, subFolder, fileName));
+        File store = new File(getPath(basePath, subFolder, RoiStore.getStoreName(fileName)));
+        boolean useStore = store.exists() && (!zip.exists() || store.lastModified() >= zip.lastModified());
+        File file = useStore ? store : zip;
+        Roi[] rois = ImageCache.getRois(file.getPath());
+        if (rois != null) {
+            Metrics.recordRead("openRois.cached", 0, startTime);
+            return RoiSet.of(rois);
+        }
+        RoiSet roiSet = null;
+        if (useStore) {
+            try {
+                roiSet = RoiSet.load(store.toPath());
+            } catch (IOException e) {
+                Logger.warn("Could not read " + store + ", reading the zip instead: " + e.getMessage());
+                file = zip;
+            }
+        }
+        if (roiSet == null) {
+            try {
+                roiSet = RoiSet.load(zip.toPath());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read " + zip, e);
+            }
+        }
+        if (cache) {
+            ImageCache.putRois(file.getPath(), roiSet.toArray());
+        }
+        Metrics.recordRead("openRois", file.length(), startTime);
+        return roiSet;
+    }
+
+    /**
+     * Saves a set of ROIs to the compact ROI store, and optionally to a zip
+     * for the ROI Manager. A zip that is not exported is removed so that it
+     * cannot go stale.
+     *
+     * @param rois      the ROIs to save.
+     * @param basePath  the path to the image folder.
+     * @param subFolder the sub-folder to save to.
+     * @param fileName  the name of the zip file.
+     * @param exportZip whether to also save the zip.
+     * @throws UncheckedIOException if neither the store nor the zip can be written.
+     */
+    public static void saveRois(RoiSet rois, String basePath, String subFolder, String fileName, boolean exportZip) {
+        long startTime = System.nanoTime();
+        Path zipPath = Paths.get(getPath(basePath, subFolder, fileName));
+        Path storePath = Paths.get(getPath(basePath, subFolder, RoiStore.getStoreName(fileName)));
+        ImageCache.evict(zipPath.toString());
+        ImageCache.evict(storePath.toString());
+        try {
+            if (exportZip) {
+                rois.save(zipPath);
+            } else {
+                Files.deleteIfExists(zipPath);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write " + zipPath, e);
+        }
+
+        // Writing the store after the zip, so that it is read in preference.
+        try {
+            rois.save(storePath);
+        } catch (IOException e) {
+            Logger.error("Could not write " + storePath + ": " + e.getMessage());
+            if (!exportZip) {
+                saveRois(rois, basePath, subFolder, fileName, true);
+                return;
+            }
+        }
+        Metrics.recordWrite("saveRois", zipPath.toFile().length() + storePath.toFile().length(), startTime);
     }
 
     /**
@@ -79,6 +264,7 @@ public class Filer {
      */
     public static void delete(String basePath, String subFolder, String fileName) {
         String filePath = getPath(basePath, subFolder, fileName);
+        ImageCache.evict(filePath);
         File f = new File(filePath);
         if (f.exists()) {
             f.delete();
@@ -0,0 +1,200 @@
+package org.gdmn.imagej.utils;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of the images and ROI sets opened by the command
+ * previews, so that preview callbacks, and the runs that follow them, reuse
+ * pixels instead of decoding the same files again. Batch reads use a cached
+ * copy when there is one but are not added, since each image is usually read
+ * once per run and caching it would cost a copy per read.
+ *
+ * <p>
+ * Entries are keyed by path and checked against the modification time and
+ * size of the file, so files changed on disk are read again, and are dropped
+ * whenever the commands overwrite or delete the file. The cache keeps
+ * to a memory budget (a quarter of the heap by default) and its values are
+ * softly referenced, so the garbage collector can still reclaim them under
+ * memory pressure, in which case their bytes are released from the budget.
+ * Callers always get their own copies to modify.
+ * </p>
+ */
+public class ImageCache {
+    private static final Map<String, Entry> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);
+    private static final ReferenceQueue<Object> CLEARED = new ReferenceQueue<>();
+    private static long limit = Runtime.getRuntime().maxMemory() / 4;
+    private static long size;
+
+    /** A cached image or ROI set, with the state of the file it was read from. */
+    private static class Entry extends SoftReference<Object> {
+        private final String key;
+        private final long modified;
+        private final long length;
+        private final long bytes;
+
+        Entry(String key, File file, long bytes, Object value) {
+            super(value, CLEARED);
+            this.key = key;
+            this.modified = file.lastModified();
+            this.length = file.length();
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Gets a copy of a cached image.
+     *
+     * @param path the path to the image file.
+     * @return the image, or null if it is not cached or the file has changed.
+     */
+    public static ImagePlus getImage(String path) {
+        Object value = get(path);
+        if (value instanceof ImagePlus) {
+            ImagePlus imp = (ImagePlus) value;
+            return ImageContext.copy(imp, imp.getTitle());
+        }
+        return null;
+    }
+
+    /**
+     * Caches a copy of a single-plane image that was just read from a file.
+     * Stacks are left to ImageJ, which restores their channel settings on
+     * opening.
+     *
+     * @param path the path to the image file.
+     * @param imp  the image.
+     */
+    public static void putImage(String path, ImagePlus imp) {
+        long bytes = (long) imp.getWidth() * imp.getHeight() * imp.getStackSize() * imp.getBytesPerPixel();
+        if (imp.getStackSize() == 1 && bytes <= getLimit()) {
+            put(path, bytes, ImageContext.copy(imp, new File(path).getName()));
+        }
+    }
+
+    /**
+     * Gets a copy of a cached ROI set.
+     *
+     * @param path the path to the zip file.
+     * @return the ROIs, or null if they are not cached or the file has changed.
+     */
+    public static Roi[] getRois(String path) {
+        Object value = get(path);
+        return value instanceof Roi[] ? ImageContext.copy((Roi[]) value) : null;
+    }
+
+    /**
+     * Caches a copy of a ROI set that was just read from a file.
+     *
+     * @param path the path to the zip file.
+     * @param rois the ROIs.
+     */
+    public static void putRois(String path, Roi[] rois) {
+        long bytes = 0;
+        for (Roi roi : rois) {
+            bytes += 64 + 8L * roi.size();
+        }
+        put(path, bytes, ImageContext.copy(rois));
+    }
+
+    /**
+     * Drops the cached copy of a file, such as one about to be overwritten.
+     *
+     * @param path the path to the file.
+     */
+    public static synchronized void evict(String path) {
+        purge();
+        remove(key(path));
+    }
+
+    /** Drops every cached image and ROI set. */
+    public static synchronized void clear() {
+        ENTRIES.clear();
+        size = 0;
+    }
+
+    public static synchronized long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Sets the memory budget, evicting the least recently used entries that no
+     * longer fit.
+     *
+     * @param bytes the budget in bytes, or 0 to disable the cache.
+     */
+    public static synchronized void setLimit(long bytes) {
+        limit = bytes;
+        purge();
+        trim();
+    }
+
+    private static synchronized Object get(String path) {
+        purge();
+        String key = key(path);
+        Entry entry = ENTRIES.get(key);
+        if (entry == null) {
+            return null;
+        }
+        File file = new File(key);
+        Object value = entry.get();
+        if (value == null || file.lastModified() != entry.modified || file.length() != entry.length) {
+            remove(key);
+            return null;
+        }
+        return value;
+    }
+
+    private static synchronized void put(String path, long bytes, Object value) {
+        purge();
+        String key = key(path);
+        remove(key);
+        File file = new File(key);
+        if (file.exists()) {
+            ENTRIES.put(key, new Entry(key, file, bytes, value));
+            size += bytes;
+            trim();
+        }
+    }
+
+    private static void remove(String key) {
+        Entry entry = ENTRIES.remove(key);
+        if (entry != null) {
+            size -= entry.bytes;
+        }
+    }
+
+    /**
+     * Drops the entries whose values the garbage collector has reclaimed,
+     * releasing their bytes from the budget.
+     */
+    private static void purge() {
+        for (Reference<?> cleared = CLEARED.poll(); cleared != null; cleared = CLEARED.poll()) {
+            Entry entry = (Entry) cleared;
+            // Leaving the key alone if it has been cached again since.
+            if (ENTRIES.remove(entry.key, entry)) {
+                size -= entry.bytes;
+            }
+        }
+    }
+
+    private static void trim() {
+        Iterator<Entry> iterator = ENTRIES.values().iterator();
+        while (size > limit && iterator.hasNext()) {
+            size -= iterator.next().bytes;
+            iterator.remove();
+        }
+    }
+
+    private static String key(String path) {
+        return new File(path).getAbsolutePath();
+    }
+
+}
@@ -0,0 +1,440 @@
+package org.gdmn.imagej.utils;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Holds the per-image state for a single run of a command over one image
+ * folder, so that commands can process many images at once without sharing
+ * mutable fields.
+ *
+ * <p>
+ * Commands read and write their images and ROI sets through the context. By
+ * default every artifact goes straight to disk. A context created with a set
+ * of persisted folders instead keeps artifacts in memory so that chained
+ * commands can pass them on without a disk round trip, and only writes the
+ * artifacts that belong to the persisted folders.
+ * </p>
+ *
+ * <p>
+ * The context also records which files on disk were read and written, so that
+ * the run can be recorded in the folder's {@link Manifest}.
+ * </p>
+ */
+public class ImageContext {
+
+    private final Path filePath;
+    private final int index;
+    private final int total;
+    private final Map<String, ImagePlus> images;
+    private final Map<String, RoiSet> roiSets;
+    private final Set<String> persistedFolders;
+    private final Set<String> inputs = new LinkedHashSet<>();
+    private final Set<String> listedFolders = new LinkedHashSet<>();
+    private final Set<String> outputs = new LinkedHashSet<>();
+    private final Map<String, Long> stageTimes = new LinkedHashMap<>();
+    private final Map<String, Long> counts = new LinkedHashMap<>();
+    private final boolean exportRoiZips;
+
+    /**
+     * Creates a context for a matched target file, writing all artifacts to
+     * disk.
+     *
+     * @param filePath the path to the file matching the file pattern.
+     * @param index    the index of the image within the run.
+     * @param total         the total number of images in the run.
+     * @param exportRoiZips whether saved ROI sets are also written as zips.
+     */
+    public ImageContext(Path filePath, int index, int total, boolean exportRoiZips) {
+        this.filePath = filePath;
+        this.index = index;
+        this.total = total;
+        this.images = null;
+        this.roiSets = null;
+        this.persistedFolders = null;
+        this.exportRoiZips = exportRoiZips;
+    }
+
+    /**
+     * Creates a context for a matched target file that keeps artifacts in
+     * memory.
+     *
+     * @param filePath         the path to the file matching the file pattern.
+     * @param index            the index of the image within the run.
+     * @param total            the total number of images in the run.
+     * @param persistedFolders the sub-folders whose artifacts are also written
+     *                         to disk, or null to write every artifact.
+     * @param exportRoiZips    whether saved ROI sets are also written as zips.
+     */
+    public ImageContext(Path filePath, int index, int total, Collection<String> persistedFolders,
+            boolean exportRoiZips) {
+        this.filePath = filePath;
+        this.index = index;
+        this.total = total;
+        this.images = new LinkedHashMap<>();
+        this.roiSets = new LinkedHashMap<>();
+        this.persistedFolders = persistedFolders == null ? null : new HashSet<>(persistedFolders);
+        this.exportRoiZips = exportRoiZips;
+    }
+
+    /**
+     * Gets the path to the matched target file (i.e. ".../roi.tif").
+     *
+     * @return the file path.
+     */
+    public String getFilePath() {
+        return this.filePath.toString();
+    }
+
+    /**
+     * Gets the path to the image folder containing the target file.
+     *
+     * @return the base path.
+     */
+    public String getBasePath() {
+        return this.filePath.getParent().toString();
+    }
+
+    public int getIndex() {
+        return this.index;
+    }
+
+    public int getTotal() {
+        return this.total;
+    }
+
+    /**
+     * Gets the files read from disk that were not written during this run.
+     *
+     * @return the paths relative to the image folder.
+     */
+    public Set<String> getInputs() {
+        return this.inputs;
+    }
+
+    /**
+     * Gets the sub-folders whose contents were listed during this run.
+     *
+     * @return the sub-folder names.
+     */
+    public Set<String> getListedFolders() {
+        return this.listedFolders;
+    }
+
+    /**
+     * Gets the files written to disk during this run.
+     *
+     * @return the paths relative to the image folder.
+     */
+    public Set<String> getOutputs() {
+        return this.outputs;
+    }
+
+    /**
+     * Runs one stage of the processing of this image, recording its wall time
+     * for the run report.
+     *
+     * @param stage the name of the stage.
+     * @param step  the work of the stage.
+     */
+    public void timeStage(String stage, Runnable step) {
+        long startTime = System.nanoTime();
+        try {
+            step.run();
+        } finally {
+            this.stageTimes.merge(stage, System.nanoTime() - startTime, Long::sum);
+        }
+    }
+
+    /**
+     * Gets the wall time of each stage timed for this image.
+     *
+     * @return the nanoseconds keyed by stage, in the order the stages ran.
+     */
+    public Map<String, Long> getStageTimes() {
+        return this.stageTimes;
+    }
+
+    /**
+     * Adds to a count reported for this image (i.e. the number of nuclei).
+     *
+     * @param name  the name of the count.
+     * @param value the amount to add.
+     */
+    public void addCount(String name, long value) {
+        this.counts.merge(name, value, Long::sum);
+    }
+
+    /**
+     * Gets the counts reported for this image.
+     *
+     * @return the counts keyed by name.
+     */
+    public Map<String, Long> getCounts() {
+        return this.counts;
+    }
+
+    /**
+     * Opens an image from the image folder, preferring an in-memory copy if one
+     * was saved during this run.
+     *
+     * @param subFolder the sub-folder containing the image.
+     * @param fileName  the name of the image file.
+     * @return a new ImagePlus that the caller is free to modify.
+     */
+    public ImagePlus openImage(String subFolder, String fileName) {
+        if (this.images != null) {
+            ImagePlus imp = this.images.get(key(subFolder, fileName));
+            if (imp != null) {
+                return copy(imp, fileName);
+            }
+        }
+        this.recordInput(subFolder, fileName);
+        return Filer.openImage(this.getBasePath(), subFolder, fileName);
+    }
+
+    /**
+     * Saves an image to the image folder.
+     *
+     * @param imp       the image to save.
+     * @param subFolder the sub-folder to save to.
+     * @param fileName  the file name to save as.
+     */
+    public void saveImage(ImagePlus imp, String subFolder, String fileName) {
+        if (this.images != null) {
+            this.images.put(key(subFolder, fileName), copy(imp, fileName));
+        }
+        if (this.isPersisted(subFolder)) {
+            Filer.save(imp, this.getBasePath(), subFolder, fileName);
+            this.outputs.add(relativePath(subFolder, fileName));
+        }
+    }
+
+    /**
+     * Gets the path of an image on disk for reading it in tiles. An in-memory
+     * copy saved during this run is first written to disk.
+     *
+     * @param subFolder the sub-folder containing the image.
+     * @param fileName  the name of the image file.
+     * @return the path to the image file.
+     */
+    public String getInputPath(String subFolder, String fileName) {
+        String path = Filer.getPath(this.getBasePath(), subFolder, fileName);
+        if (this.images != null) {
+            ImagePlus imp = this.images.get(key(subFolder, fileName));
+            if (imp != null) {
+                Filer.save(imp, this.getBasePath(), subFolder, fileName);
+                this.outputs.add(relativePath(subFolder, fileName));
+                return path;
+            }
+        }
+        this.recordInput(subFolder, fileName);
+        return path;
+    }
+
+    /**
+     * Gets the path of an image to be written to disk in tiles, dropping any
+     * in-memory or cached copy so that later reads see the new file.
+     *
+     * @param subFolder the sub-folder to save to.
+     * @param fileName  the file name to save as.
+     * @return the path to the image file.
+     */
+    public String getOutputPath(String subFolder, String fileName) {
+        if (this.images != null) {
+            this.images.remove(key(subFolder, fileName));
+        }
+        this.outputs.add(relativePath(subFolder, fileName));
+        String path = Filer.getPath(this.getBasePath(), subFolder, fileName);
+        ImageCache.evict(path);
+        return path;
+    }
+
+    /**
+     * Opens a set of ROIs from the zips folder.
+     *
+     * @param fileName the name of the zip file.
+     * @return the ROIs, which the caller is free to modify.
+     */
+    public RoiSet openRois(String fileName) {
+        if (this.roiSets != null) {
+            RoiSet rois = this.roiSets.get(key("zips", fileName));
+            if (rois != null) {
+                return RoiSet.of(copy(rois.toArray()));
+            }
+        }
+        this.recordInput("zips", fileName);
+        this.recordInput("zips", RoiStore.getStoreName(fileName));
+        return Filer.openRois(this.getBasePath(), "zips", fileName);
+    }
+
+    /**
+     * Saves a set of ROIs to the zips folder.
+     *
+     * @param rois     the ROIs to save.
+     * @param fileName the name of the zip file.
+     */
+    public void saveRois(RoiSet rois, String fileName) {
+        if (this.roiSets != null) {
+            this.roiSets.put(key("zips", fileName), RoiSet.of(copy(rois.toArray())));
+        }
+        if (this.isPersisted("zips")) {
+            Filer.saveRois(rois, this.getBasePath(), "zips", fileName, this.exportRoiZips);
+            this.outputs.add(relativePath("zips", fileName));
+            this.outputs.add(relativePath("zips", RoiStore.getStoreName(fileName)));
+        }
+    }
+
+    /**
+     * Saves lines of text (i.e. data.txt) to the image folder.
+     *
+     * @param lines     the lines to write.
+     * @param subFolder the sub-folder to save to.
+     * @param fileName  the file name to save as.
+     * @throws IOException if the file cannot be written.
+     */
+    public void saveText(List<String> lines, String subFolder, String fileName) throws IOException {
+        if (this.isPersisted(subFolder)) {
+            long startTime = System.nanoTime();
+            File file = new File(Filer.getPath(this.getBasePath(), subFolder, fileName));
+            Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+            Metrics.recordWrite("saveText", file.length(), startTime);
+            this.outputs.add(relativePath(subFolder, fileName));
+        }
+    }
+
+    /**
+     * Checks whether an artifact exists in memory or on disk.
+     *
+     * @param subFolder the sub-folder of the artifact.
+     * @param fileName  the name of the artifact.
+     * @return true if the artifact exists.
+     */
+    public boolean exists(String subFolder, String fileName) {
+        String key = key(subFolder, fileName);
+        if (this.images != null && (this.images.containsKey(key) || this.roiSets.containsKey(key))) {
+            return true;
+        }
+        this.recordInput(subFolder, fileName);
+        return new File(Filer.getPath(this.getBasePath(), subFolder, fileName)).exists();
+    }
+
+    /**
+     * Lists the artifacts in a sub-folder, in memory or on disk.
+     *
+     * @param subFolder the sub-folder to list.
+     * @return the sorted file names.
+     */
+    public List<String> list(String subFolder) {
+        this.listedFolders.add(subFolder);
+        Set<String> names = new TreeSet<>();
+        File[] files = new File(Filer.getPath(this.getBasePath(), subFolder, "")).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    // Listing ROI stores under the name of the zip they stand in for.
+                    String zipName = RoiStore.getZipName(file.getName());
+                    names.add(zipName != null ? zipName : file.getName());
+                }
+            }
+        }
+        if (this.images != null) {
+            String prefix = key(subFolder, "");
+            for (String key : this.images.keySet()) {
+                if (key.startsWith(prefix)) {
+                    names.add(key.substring(prefix.length()));
+                }
+            }
+            for (String key : this.roiSets.keySet()) {
+                if (key.startsWith(prefix)) {
+                    names.add(key.substring(prefix.length()));
+                }
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Deletes an artifact from memory and disk.
+     *
+     * @param subFolder the sub-folder of the artifact.
+     * @param fileName  the name of the artifact.
+     */
+    public void delete(String subFolder, String fileName) {
+        if (this.images != null) {
+            this.images.remove(key(subFolder, fileName));
+            this.roiSets.remove(key(subFolder, fileName));
+        }
+        this.inputs.remove(relativePath(subFolder, fileName));
+        this.outputs.remove(relativePath(subFolder, fileName));
+        Filer.delete(this.getBasePath(), subFolder, fileName);
+    }
+
+    /**
+     * Releases any artifacts held in memory.
+     */
+    public void clear() {
+        if (this.images != null) {
+            this.images.clear();
+            this.roiSets.clear();
+        }
+    }
+
+    private boolean isPersisted(String subFolder) {
+        return this.persistedFolders == null || this.persistedFolders.contains(subFolder);
+    }
+
+    private void recordInput(String subFolder, String fileName) {
+        String path = relativePath(subFolder, fileName);
+        if (!this.outputs.contains(path)) {
+            this.inputs.add(path);
+        }
+    }
+
+    private static String relativePath(String subFolder, String fileName) {
+        return subFolder.isEmpty() ? fileName : subFolder + "/" + fileName;
+    }
+
+    private static String key(String subFolder, String fileName) {
+        return subFolder + "/" + fileName;
+    }
+
+    static ImagePlus copy(ImagePlus imp, String title) {
+        ImagePlus copy;
+        if (imp.getStackSize() == 1) {
+            copy = new ImagePlus(title, imp.getProcessor().duplicate());
+        } else {
+            copy = new ImagePlus(title, imp.getStack().duplicate());
+            copy.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+        }
+        copy.setCalibration(imp.getCalibration());
+        Roi roi = imp.getRoi();
+        if (roi != null) {
+            copy.setRoi((Roi) roi.clone());
+        }
+        return copy;
+    }
+
+    static Roi[] copy(Roi[] rois) {
+        Roi[] copy = new Roi[rois.length];
+        for (int i = 0; i < rois.length; i++) {
+            copy[i] = (Roi) rois[i].clone();
+        }
+        return copy;
+    }
+
+}
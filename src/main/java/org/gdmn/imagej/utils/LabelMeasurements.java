@@ -0,0 +1,348 @@
+package org.gdmn.imagej.utils;
+
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Label-image based measurement of a set of nuclear ROIs. The ROIs are
+ * rasterized once into a label array (ROI index + 1, later ROIs drawn over
+ * earlier ones as with ImageProcessor.fill), after which intensities for all
+ * nuclei are accumulated in a single linear pass over the pixel array.
+ *
+ * <p>
+ * Pixels shared by overlapping ROIs can only hold one label, so sums for the
+ * few overlapping nuclei are recomputed over their own masks, keeping results
+ * identical to ImagePlus.getStatistics on each ROI.
+ * </p>
+ */
+public class LabelMeasurements {
+    private final Roi[] rois;
+    private final int originX;
+    private final int originY;
+    private final int width;
+    private final int height;
+    private final int[] labels;
+    private final int[] pixelCounts;
+    private final double[] centroidsX;
+    private final double[] centroidsY;
+    private final BitSet overlapping = new BitSet();
+
+    /**
+     * Rasterizes a set of ROIs into a label array.
+     *
+     * @param rois   the nuclear ROIs.
+     * @param width  the width of the image.
+     * @param height the height of the image.
+     */
+    public LabelMeasurements(Roi[] rois, int width, int height) {
+        this(rois, new Rectangle(0, 0, width, height));
+    }
+
+    /**
+     * Rasterizes the parts of a set of ROIs that fall within a region of the
+     * image, such as a tile. Labels are indexed within the region, while
+     * centroids remain in image coordinates.
+     *
+     * @param rois   the nuclear ROIs.
+     * @param region the region of the image to rasterize.
+     */
+    public LabelMeasurements(Roi[] rois, Rectangle region) {
+        this.rois = rois;
+        this.originX = region.x;
+        this.originY = region.y;
+        this.width = region.width;
+        this.height = region.height;
+        this.labels = new int[width * height];
+        this.pixelCounts = new int[rois.length];
+        this.centroidsX = new double[rois.length];
+        this.centroidsY = new double[rois.length];
+        for (int n = 0; n < rois.length; n++) {
+            this.rasterize(n);
+            if (this.pixelCounts[n] > 0) {
+                this.centroidsX[n] = this.centroidsX[n] / this.pixelCounts[n];
+                this.centroidsY[n] = this.centroidsY[n] / this.pixelCounts[n];
+            } else {
+                this.centroidsX[n] = Double.NaN;
+                this.centroidsY[n] = Double.NaN;
+            }
+        }
+    }
+
+    public int size() {
+        return this.rois.length;
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * Gets the label array, where each pixel holds the index + 1 of the last
+     * ROI covering it, or 0 for background.
+     *
+     * @return the label array in row-major order.
+     */
+    public int[] getLabels() {
+        return this.labels;
+    }
+
+    /**
+     * Gets the number of pixels in each ROI.
+     *
+     * @return the pixel counts, indexed by ROI.
+     */
+    public int[] getPixelCounts() {
+        return this.pixelCounts;
+    }
+
+    /**
+     * Gets the centroid x-coordinate of each ROI in pixels.
+     *
+     * @return the x-coordinates, indexed by ROI.
+     */
+    public double[] getCentroidsX() {
+        return this.centroidsX;
+    }
+
+    /**
+     * Gets the centroid y-coordinate of each ROI in pixels.
+     *
+     * @return the y-coordinates, indexed by ROI.
+     */
+    public double[] getCentroidsY() {
+        return this.centroidsY;
+    }
+
+    /**
+     * Checks whether any pixel is covered by more than one ROI.
+     *
+     * @return true if any ROIs overlap.
+     */
+    public boolean hasOverlaps() {
+        return !this.overlapping.isEmpty();
+    }
+
+    /**
+     * Creates a label image in a single pass over the labels, with each ROI
+     * filled with a chosen value. The bit depth is the smallest that holds the
+     * largest value: 8-bit up to 255, 16-bit up to 65535, otherwise 32-bit.
+     *
+     * @param values the value for each ROI, where 0 leaves it as background.
+     * @return the label image.
+     */
+    public ImageProcessor createLabelImage(int[] values) {
+        int maxValue = 0;
+        for (int value : values) {
+            maxValue = Math.max(maxValue, value);
+        }
+        if (maxValue <= 255) {
+            byte[] pixels = new byte[this.labels.length];
+            for (int i = 0; i < this.labels.length; i++) {
+                int label = this.labels[i];
+                if (label != 0) {
+                    pixels[i] = (byte) values[label - 1];
+                }
+            }
+            return new ByteProcessor(this.width, this.height, pixels);
+        } else if (maxValue <= 65535) {
+            short[] pixels = new short[this.labels.length];
+            for (int i = 0; i < this.labels.length; i++) {
+                int label = this.labels[i];
+                if (label != 0) {
+                    pixels[i] = (short) values[label - 1];
+                }
+            }
+            return new ShortProcessor(this.width, this.height, pixels, null);
+        }
+        float[] pixels = new float[this.labels.length];
+        for (int i = 0; i < this.labels.length; i++) {
+            int label = this.labels[i];
+            if (label != 0) {
+                pixels[i] = values[label - 1];
+            }
+        }
+        return new FloatProcessor(this.width, this.height, pixels, null);
+    }
+
+    /**
+     * Measures the sum and maximum intensity under each ROI in a single pass.
+     *
+     * @param ip the intensity image, with the same dimensions as the labels.
+     * @return the intensities.
+     */
+    public Intensities measure(ImageProcessor ip) {
+        return this.measure(new ImageProcessor[] { ip })[0];
+    }
+
+    /**
+     * Measures the sum and maximum intensity under each ROI for several
+     * intensity images in a single pass over the labels.
+     *
+     * @param ips the intensity images, with the same dimensions as the labels.
+     * @return the intensities of each image.
+     */
+    public Intensities[] measure(ImageProcessor[] ips) {
+        Intensities[] intensities = new Intensities[ips.length];
+        for (int k = 0; k < ips.length; k++) {
+            intensities[k] = new Intensities(this.rois.length);
+        }
+        for (int i = 0; i < this.labels.length; i++) {
+            int label = this.labels[i];
+            if (label != 0) {
+                for (int k = 0; k < ips.length; k++) {
+                    float value = ips[k].getf(i);
+                    intensities[k].sums[label - 1] += value;
+                    if (value > intensities[k].maxima[label - 1]) {
+                        intensities[k].maxima[label - 1] = value;
+                    }
+                }
+            }
+        }
+        for (int n = this.overlapping.nextSetBit(0); n >= 0; n = this.overlapping.nextSetBit(n + 1)) {
+            for (int k = 0; k < ips.length; k++) {
+                this.measureOverMask(n, ips[k], intensities[k]);
+            }
+        }
+        for (int k = 0; k < ips.length; k++) {
+            for (int n = 0; n < this.rois.length; n++) {
+                intensities[k].means[n] = intensities[k].sums[n] / this.pixelCounts[n];
+            }
+        }
+        return intensities;
+    }
+
+    /**
+     * Gets the mean intensity under each ROI.
+     *
+     * @param ip the intensity image, with the same dimensions as the labels.
+     * @return the means, indexed by ROI (NaN for empty ROIs).
+     */
+    public double[] getMeans(ImageProcessor ip) {
+        return this.measure(ip).getMeans();
+    }
+
+    /**
+     * Paints each labelled pixel with a value chosen per ROI.
+     *
+     * @param ip     the image to paint into.
+     * @param values the value to paint for each ROI.
+     */
+    public void paint(ImageProcessor ip, int[] values) {
+        for (int i = 0; i < this.labels.length; i++) {
+            int label = this.labels[i];
+            if (label != 0) {
+                ip.set(i, values[label - 1]);
+            }
+        }
+    }
+
+    private void rasterize(int n) {
+        Rectangle bounds = this.rois[n].getBounds();
+        ImageProcessor mask = this.rois[n].getMask();
+        byte[] maskPixels = mask == null ? null : (byte[]) mask.getPixels();
+        for (int y = Math.max(this.originY, bounds.y); y < Math.min(this.originY + this.height,
+                bounds.y + bounds.height); y++) {
+            for (int x = Math.max(this.originX, bounds.x); x < Math.min(this.originX + this.width,
+                    bounds.x + bounds.width); x++) {
+                if (maskPixels == null || maskPixels[(y - bounds.y) * bounds.width + x - bounds.x] != 0) {
+                    int i = (y - this.originY) * this.width + x - this.originX;
+                    if (this.labels[i] != 0) {
+                        this.overlapping.set(this.labels[i] - 1);
+                        this.overlapping.set(n);
+                    }
+                    this.labels[i] = n + 1;
+                    this.pixelCounts[n]++;
+                    this.centroidsX[n] += x + 0.5;
+                    this.centroidsY[n] += y + 0.5;
+                }
+            }
+        }
+    }
+
+    private void measureOverMask(int n, ImageProcessor ip, Intensities intensities) {
+        Rectangle bounds = this.rois[n].getBounds();
+        ImageProcessor mask = this.rois[n].getMask();
+        byte[] maskPixels = mask == null ? null : (byte[]) mask.getPixels();
+        double sum = 0;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int y = Math.max(this.originY, bounds.y); y < Math.min(this.originY + this.height,
+                bounds.y + bounds.height); y++) {
+            for (int x = Math.max(this.originX, bounds.x); x < Math.min(this.originX + this.width,
+                    bounds.x + bounds.width); x++) {
+                if (maskPixels == null || maskPixels[(y - bounds.y) * bounds.width + x - bounds.x] != 0) {
+                    float value = ip.getf((y - this.originY) * this.width + x - this.originX);
+                    sum += value;
+                    max = Math.max(max, value);
+                }
+            }
+        }
+        intensities.sums[n] = sum;
+        intensities.maxima[n] = max;
+    }
+
+    /** Per-ROI intensity measurements of one image. */
+    public static class Intensities {
+        private final double[] sums;
+        private final double[] means;
+        private final float[] maxima;
+
+        /**
+         * Creates empty intensities, to be accumulated from tiles.
+         *
+         * @param size the number of ROIs.
+         */
+        public Intensities(int size) {
+            this.sums = new double[size];
+            this.means = new double[size];
+            this.maxima = new float[size];
+            Arrays.fill(this.maxima, Float.NEGATIVE_INFINITY);
+        }
+
+        /**
+         * Adds the intensities measured over a tile.
+         *
+         * @param tile    the intensities of the ROIs within the tile.
+         * @param indices the index of each tile ROI within these intensities.
+         */
+        public void add(Intensities tile, int[] indices) {
+            for (int j = 0; j < indices.length; j++) {
+                this.sums[indices[j]] += tile.sums[j];
+                this.maxima[indices[j]] = Math.max(this.maxima[indices[j]], tile.maxima[j]);
+            }
+        }
+
+        /**
+         * Updates the means from the accumulated sums.
+         *
+         * @param pixelCounts the total number of pixels in each ROI.
+         */
+        public void updateMeans(int[] pixelCounts) {
+            for (int n = 0; n < this.sums.length; n++) {
+                this.means[n] = this.sums[n] / pixelCounts[n];
+            }
+        }
+
+        public double[] getSums() {
+            return this.sums;
+        }
+
+        public double[] getMeans() {
+            return this.means;
+        }
+
+        public float[] getMaxima() {
+            return this.maxima;
+        }
+    }
+
+}
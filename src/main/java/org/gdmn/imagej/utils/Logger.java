@@ -4,11 +4,18 @@ import ij.IJ;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.scijava.ItemVisibility;
+import org.scijava.plugin.Parameter;
+import org.scijava.service.Service;
+import org.scijava.widget.Button;
 
 /**
  * Contains static logging methods for the plugin.
@@ -24,23 +31,16 @@ public class Logger {
         // Setting up log text.
         String logText = instance.getClass().getName() + "\n";
         logText += "runDirectory=" + instance.selectedDir + "\n";
-        logText += "filePattern=" + instance.filePattern + "\n\n";
+        logText += "filePattern=" + instance.filePattern + "\n";
+        logText += "numWorkers=" + instance.numWorkers + "\n";
+        logText += "exportRoiZips=" + instance.exportRoiZips + "\n\n";
 
         // Adding argument fields.
-        Field[] fields = instance.getClass().getDeclaredFields();
-        for (int i = 1; i < fields.length - 1; i++) {
-            fields[i].setAccessible(true);
-            String fieldName = fields[i].getName();
-            try {
-                if (fields[i].get(instance) != null) {
-                    String fieldValue = fields[i].get(instance).toString();
-                    logText += fieldName + "=" + fieldValue + "\n";
-                    Defaults.set(fieldName, fieldValue);
-                }
-            } catch (IllegalAccessException e) {
-                logText += "ERR:VALUE_NOT_LOGGED";
-            }
+        for (Map.Entry<String, String> parameter : getParameters(instance).entrySet()) {
+            logText += parameter.getKey() + "=" + parameter.getValue() + "\n";
+            Defaults.set(parameter.getKey(), parameter.getValue());
         }
+        Defaults.save();
 
         // Saving logfile.
         String dateTime = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy_MM_dd_HH_mm_ss"));
@@ -53,11 +53,61 @@ public class Logger {
         }
     }
 
+    /**
+     * Writes the timing and throughput report of a run next to its log.
+     *
+     * @param instance the BatchCommand instance that was executed.
+     * @param report   the finished report of the run.
+     */
+    public static void logReport(BatchCommand instance, RunReport report) {
+        String dateTime = report.getStarted().format(DateTimeFormatter.ofPattern("yyyy_MM_dd_HH_mm_ss"));
+        String reportFile = dateTime + "_" + instance.getClass().getSimpleName() + "_report.json";
+        Path filePath = Paths.get(logDir(), reportFile);
+        try {
+            Files.write(filePath, report.toJson().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            IJ.log(e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the values of the user-facing parameters of a command, excluding
+     * messages, buttons and services.
+     *
+     * @param instance the BatchCommand instance.
+     * @return the parameter values keyed by field name, in declaration order.
+     */
+    public static Map<String, String> getParameters(BatchCommand instance) {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        for (Field field : instance.getClass().getDeclaredFields()) {
+            Parameter parameter = field.getAnnotation(Parameter.class);
+            if (parameter == null || parameter.visibility() == ItemVisibility.MESSAGE
+                    || field.getType() == Button.class || Service.class.isAssignableFrom(field.getType())) {
+                continue;
+            }
+            field.setAccessible(true);
+            try {
+                if (field.get(instance) != null) {
+                    parameters.put(field.getName(), field.get(instance).toString());
+                }
+            } catch (IllegalAccessException e) {
+                parameters.put(field.getName(), "ERR:VALUE_NOT_LOGGED");
+            }
+        }
+        return parameters;
+    }
+
     private static String logDir() {
-        String logDirString = Paths.get(ij.Menus.getPlugInsPath(), "GdMN Plugin", "Logs").toString();
+        // Falling back to the ImageJ folder when running without the ImageJ menus.
+        String pluginsPath = ij.Menus.getPlugInsPath();
+        if (pluginsPath == null) {
+            pluginsPath = Paths.get(System.getProperty("plugins.dir", System.getProperty("user.dir")), "plugins")
+                    .toString();
+        }
+        String logDirString = Paths.get(pluginsPath, "GdMN Plugin", "Logs").toString();
         File dir = new File(logDirString);
         if (!dir.exists() || !dir.isDirectory()) {
-            dir.mkdir();
+            dir.mkdirs();
         }
         return logDirString;
     }
@@ -0,0 +1,189 @@
+package org.gdmn.imagej.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Per-folder record of the commands that have been run on an image folder,
+ * their parameters, and the size and modification time of the files they read
+ * and wrote. Used to skip folders whose outputs are already up to date.
+ */
+public class Manifest {
+    private static final String FILE_NAME = "manifest.txt";
+
+    private final Path path;
+    private final Map<String, Map<String, String>> entries = new LinkedHashMap<>();
+
+    private Manifest(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Reads the manifest for an image folder, returning an empty manifest if
+     * none exists or it cannot be read.
+     *
+     * @param basePath the path to the image folder.
+     * @return the manifest.
+     */
+    public static Manifest read(String basePath) {
+        Manifest manifest = new Manifest(Paths.get(basePath, FILE_NAME));
+        if (!Files.exists(manifest.path)) {
+            return manifest;
+        }
+        try {
+            Map<String, String> entry = null;
+            for (String line : Files.readAllLines(manifest.path, StandardCharsets.UTF_8)) {
+                if (line.startsWith("[") && line.endsWith("]")) {
+                    entry = new LinkedHashMap<>();
+                    manifest.entries.put(line.substring(1, line.length() - 1), entry);
+                } else if (entry != null && line.contains("=")) {
+                    int split = line.indexOf("=");
+                    entry.put(line.substring(0, split), line.substring(split + 1));
+                }
+            }
+        } catch (IOException e) {
+            Logger.warn("Could not read manifest at " + manifest.path + ": " + e.getMessage());
+            manifest.entries.clear();
+        }
+        return manifest;
+    }
+
+    /**
+     * Creates the identifier of a manifest entry from the command and the
+     * SHA-256 digest of its parameter values, so that different parameters
+     * cannot share an entry.
+     *
+     * @param commandName the name of the command.
+     * @param parameters  the parameter values of the command.
+     * @return the entry identifier.
+     */
+    public static String entryId(String commandName, Map<String, String> parameters) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(parameters.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder id = new StringBuilder(commandName).append("@");
+            for (byte b : hash) {
+                id.append(String.format("%02x", b));
+            }
+            return id.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks whether a command has already been run with the same parameters
+     * and none of its recorded inputs or outputs have changed since.
+     *
+     * @param entryId  the identifier of the entry.
+     * @param basePath the path to the image folder.
+     * @return true if the outputs are up to date.
+     */
+    public boolean isUpToDate(String entryId, String basePath) {
+        Map<String, String> entry = this.entries.get(entryId);
+        if (entry == null) {
+            return false;
+        }
+        for (Map.Entry<String, String> item : entry.entrySet()) {
+            String key = item.getKey();
+            String current = null;
+            if (key.startsWith("in:") || key.startsWith("out:")) {
+                current = fingerprint(basePath, key.substring(key.indexOf(":") + 1));
+            } else if (key.startsWith("list:")) {
+                current = listing(basePath, key.substring(5));
+            }
+            if (current != null && !current.equals(item.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records a successful run of a command, replacing any earlier entries
+     * whose outputs it overwrote.
+     *
+     * @param entryId    the identifier of the entry.
+     * @param parameters the parameter values of the command.
+     * @param context    the context the command was run with.
+     */
+    public void record(String entryId, Map<String, String> parameters, ImageContext context) {
+        String basePath = context.getBasePath();
+        Map<String, String> entry = new LinkedHashMap<>();
+        parameters.forEach((name, value) -> entry.put("param:" + name, value));
+        for (String input : context.getInputs()) {
+            entry.put("in:" + input, fingerprint(basePath, input));
+        }
+        for (String folder : context.getListedFolders()) {
+            entry.put("list:" + folder, listing(basePath, folder));
+        }
+        for (String output : context.getOutputs()) {
+            entry.put("out:" + output, fingerprint(basePath, output));
+        }
+
+        // Removing entries superseded by this run.
+        Iterator<Map<String, String>> iterator = this.entries.values().iterator();
+        while (iterator.hasNext()) {
+            Map<String, String> existing = iterator.next();
+            for (String output : context.getOutputs()) {
+                if (existing.containsKey("out:" + output)) {
+                    iterator.remove();
+                    break;
+                }
+            }
+        }
+        this.entries.remove(entryId);
+        this.entries.put(entryId, entry);
+    }
+
+    /**
+     * Writes the manifest to the image folder.
+     */
+    public void write() {
+        List<String> lines = new ArrayList<>();
+        this.entries.forEach((entryId, entry) -> {
+            lines.add("[" + entryId + "]");
+            entry.forEach((key, value) -> lines.add(key + "=" + value));
+        });
+        try {
+            Files.write(this.path, lines, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            Logger.warn("Could not write manifest at " + this.path + ": " + e.getMessage());
+        }
+    }
+
+    private static String fingerprint(String basePath, String relativePath) {
+        File file = Paths.get(basePath, relativePath).toFile();
+        if (!file.exists()) {
+            return "missing";
+        }
+        return file.length() + "," + file.lastModified();
+    }
+
+    private static String listing(String basePath, String subFolder) {
+        TreeSet<String> names = new TreeSet<>();
+        File[] files = Paths.get(basePath, subFolder).toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    names.add(file.getName());
+                }
+            }
+        }
+        return Integer.toHexString(String.join("/", names).hashCode());
+    }
+
+}
@@ -7,6 +7,24 @@ import ij.process.ImageProcessor;
 
 /** Masks utility class. */
 public class Masks {
+    /**
+     * Gets the selection of a mask, tracing it from the foreground pixels for
+     * masks saved without one (i.e. masks created in tiles).
+     *
+     * @param imp the mask image.
+     * @return the selection, or null if the mask is empty.
+     */
+    public static Roi getRoi(ImagePlus imp) {
+        Roi roi = imp.getRoi();
+        if (roi == null) {
+            ImageProcessor ip = imp.getProcessor();
+            ip.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+            roi = ThresholdToSelection.run(imp);
+            ip.resetThreshold();
+        }
+        return roi;
+    }
+
     /**
      * Combines a set of masks using AND.
      *
@@ -18,7 +36,7 @@ public class Masks {
         ImageProcessor ip = imp.getProcessor();
         ip.setColor(0);
         for (int i = 1; i < imps.length; i++) {
-            Roi roi = imps[i].getRoi();
+            Roi roi = getRoi(imps[i]);
             imp.setRoi(roi);
             ip.fillOutside(roi);
         }
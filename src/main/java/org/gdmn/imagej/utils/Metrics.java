@@ -0,0 +1,94 @@
+package org.gdmn.imagej.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the file operations of the plugin, shared by all threads. Each
+ * operation (i.e. openImage) keeps its number of calls, bytes transferred and
+ * time spent, and each thread also keeps the bytes it has read and written, so
+ * that a worker can attribute its I/O to the image it is processing.
+ */
+public class Metrics {
+    private static final Map<String, Operation> OPERATIONS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<long[]> THREAD_BYTES = ThreadLocal.withInitial(() -> new long[2]);
+
+    /** Running totals of one file operation. */
+    public static class Operation {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        public long getCalls() {
+            return this.calls.sum();
+        }
+
+        public long getBytes() {
+            return this.bytes.sum();
+        }
+
+        public long getNanos() {
+            return this.nanos.sum();
+        }
+    }
+
+    /**
+     * Records a read from disk.
+     *
+     * @param operation the name of the operation.
+     * @param bytes     the number of bytes read.
+     * @param startTime the System.nanoTime() at which the read started.
+     */
+    public static void recordRead(String operation, long bytes, long startTime) {
+        record(operation, bytes, startTime);
+        THREAD_BYTES.get()[0] += bytes;
+    }
+
+    /**
+     * Records a write to disk.
+     *
+     * @param operation the name of the operation.
+     * @param bytes     the number of bytes written.
+     * @param startTime the System.nanoTime() at which the write started.
+     */
+    public static void recordWrite(String operation, long bytes, long startTime) {
+        record(operation, bytes, startTime);
+        THREAD_BYTES.get()[1] += bytes;
+    }
+
+    /**
+     * Gets the bytes read and written by the current thread since the last
+     * call, and starts counting again.
+     *
+     * @return the bytes read and written.
+     */
+    public static long[] takeThreadBytes() {
+        long[] bytes = THREAD_BYTES.get();
+        long[] taken = bytes.clone();
+        bytes[0] = 0;
+        bytes[1] = 0;
+        return taken;
+    }
+
+    /**
+     * Gets a snapshot of the totals of each operation, in name order.
+     *
+     * @return the calls, bytes and nanoseconds of each operation.
+     */
+    public static Map<String, long[]> snapshot() {
+        Map<String, long[]> snapshot = new TreeMap<>();
+        OPERATIONS.forEach((name, operation) -> snapshot.put(name,
+                new long[] { operation.getCalls(), operation.getBytes(), operation.getNanos() }));
+        return snapshot;
+    }
+
+    private static void record(String operation, long bytes, long startTime) {
+        Operation totals = OPERATIONS.computeIfAbsent(operation, name -> new Operation());
+        totals.calls.increment();
+        totals.bytes.add(bytes);
+        totals.nanos.add(System.nanoTime() - startTime);
+    }
+
+}
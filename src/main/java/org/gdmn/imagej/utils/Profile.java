@@ -0,0 +1,154 @@
+package org.gdmn.imagej.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Versioned parameter profile holding the full parameter set of a pipeline,
+ * saved as a properties file per experiment so that runs can be repeated with
+ * the same parameters on any machine.
+ *
+ * <p>
+ * Parameters are keyed by the names used in the run logs and defaults, and
+ * grouped by command. Loading a profile sets the defaults in memory, so
+ * commands created afterwards take its values, and {@link #apply} updates an
+ * open command. Plain name=value files without a profileVersion load as
+ * version 1.
+ * </p>
+ */
+public class Profile {
+    public static final int VERSION = 1;
+    private static final String VERSION_KEY = "profileVersion";
+
+    /**
+     * Saves the parameters of a set of commands to a profile. Parameters
+     * shared by several commands are written under the first.
+     *
+     * @param path     the path to the profile.
+     * @param commands the commands, the first of which supplies the batch
+     *                 settings (file pattern, workers).
+     * @throws IOException if the file cannot be written.
+     */
+    public static void save(Path path, List<BatchCommand> commands) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# GdMN pipeline profile, saved "
+                + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
+        lines.add(VERSION_KEY + "=" + VERSION);
+
+        // Writing the batch settings, then each command's parameters.
+        Set<String> written = new HashSet<>();
+        BatchCommand first = commands.get(0);
+        Map<String, String> batch = new LinkedHashMap<>();
+        batch.put("filePattern", first.filePattern);
+        batch.put("numWorkers", String.valueOf(first.numWorkers));
+        batch.put("skipUpToDate", String.valueOf(first.skipUpToDate));
+        batch.put("exportRoiZips", String.valueOf(first.exportRoiZips));
+        addSection(lines, "Batch", batch, written);
+        for (BatchCommand command : commands) {
+            addSection(lines, command.getClass().getSimpleName(), Logger.getParameters(command), written);
+        }
+        Files.write(path, lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Loads a profile into the defaults.
+     *
+     * @param path the path to the profile.
+     * @return the number of parameters loaded.
+     * @throws IOException if the file cannot be read, or was saved by a newer
+     *                     version of the plugin.
+     */
+    public static int load(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        int version;
+        try {
+            version = Integer.parseInt(properties.getProperty(VERSION_KEY, "1").trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid profile version in " + path);
+        }
+        if (version > VERSION) {
+            throw new IOException("Profile " + path + " is version " + version + ", newer than the supported version "
+                    + VERSION);
+        }
+        properties.remove(VERSION_KEY);
+        for (String key : properties.stringPropertyNames()) {
+            Defaults.set(key, properties.getProperty(key).trim());
+        }
+        return properties.size();
+    }
+
+    /**
+     * Updates the batch settings and parameters of a command from the defaults,
+     * such as after loading a profile into an open dialog.
+     *
+     * @param command the command.
+     */
+    public static void apply(BatchCommand command) {
+        command.filePattern = Defaults.get("filePattern", command.filePattern);
+        command.numWorkers = Integer.parseInt(Defaults.get("numWorkers", String.valueOf(command.numWorkers)));
+        command.skipUpToDate = Boolean.parseBoolean(Defaults.get("skipUpToDate", String.valueOf(command.skipUpToDate)));
+        command.exportRoiZips = Boolean.parseBoolean(
+                Defaults.get("exportRoiZips", String.valueOf(command.exportRoiZips)));
+        for (Map.Entry<String, String> parameter : Logger.getParameters(command).entrySet()) {
+            String value = Defaults.get(parameter.getKey(), parameter.getValue());
+            try {
+                Field field = command.getClass().getDeclaredField(parameter.getKey());
+                field.setAccessible(true);
+                Class<?> type = field.getType();
+                if (type == String.class) {
+                    field.set(command, value);
+                } else if (type == int.class) {
+                    field.setInt(command, Integer.parseInt(value));
+                } else if (type == double.class) {
+                    field.setDouble(command, Double.parseDouble(value));
+                } else if (type == boolean.class) {
+                    field.setBoolean(command, Boolean.parseBoolean(value));
+                }
+            } catch (NoSuchFieldException | IllegalAccessException | NumberFormatException e) {
+                Logger.warn("Could not apply " + parameter.getKey() + "=" + value + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void addSection(List<String> lines, String name, Map<String, String> parameters,
+            Set<String> written) {
+        List<String> section = new ArrayList<>();
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            if (written.add(parameter.getKey())) {
+                section.add(parameter.getKey() + "=" + escape(parameter.getValue()));
+            }
+        }
+        if (!section.isEmpty()) {
+            lines.add("");
+            lines.add("# " + name);
+            lines.addAll(section);
+        }
+    }
+
+    /**
+     * Escapes a value for a properties file, keeping Windows paths intact.
+     *
+     * @param value the value.
+     * @return the escaped value.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+}
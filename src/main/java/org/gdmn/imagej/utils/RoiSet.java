@@ -0,0 +1,305 @@
+package org.gdmn.imagej.utils;
+
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.io.RoiEncoder;
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Ordered, immutable collection of ROIs that replaces the ROI Manager for
+ * non-interactive work. Sets are loaded from and saved to ROI zips and ROI
+ * stores without creating any AWT frames, so commands run headless, and as
+ * filtering and partitioning return new sets, a set can be shared between
+ * threads freely.
+ *
+ * <p>
+ * The ROIs themselves are not copied, so callers that modify a ROI should
+ * clone it first. Each ROI has a nucleus id, which is its number in the set
+ * it was first labelled in, so that nuclei can be matched across the sets
+ * split from it and to the values of the label images.
+ * </p>
+ */
+public final class RoiSet {
+    private static final RoiSet EMPTY = new RoiSet(new Roi[0]);
+
+    private final Roi[] rois;
+
+    private RoiSet(Roi[] rois) {
+        this.rois = rois;
+    }
+
+    /**
+     * Creates a set from an array of ROIs.
+     *
+     * @param rois the ROIs, which are copied into the set in order.
+     * @return the set.
+     */
+    public static RoiSet of(Roi... rois) {
+        return rois.length == 0 ? EMPTY : new RoiSet(rois.clone());
+    }
+
+    /**
+     * Creates a set from a list of ROIs.
+     *
+     * @param rois the ROIs, in order.
+     * @return the set.
+     */
+    public static RoiSet of(List<Roi> rois) {
+        return rois.isEmpty() ? EMPTY : new RoiSet(rois.toArray(new Roi[0]));
+    }
+
+    /**
+     * Loads a set from a ROI zip or ROI store, chosen by the file extension.
+     *
+     * @param path the path to the file.
+     * @return the ROIs in the order they were saved.
+     * @throws IOException if the file cannot be read.
+     */
+    public static RoiSet load(Path path) throws IOException {
+        if (RoiStore.getZipName(path.getFileName().toString()) != null) {
+            return new RoiSet(RoiStore.read(path));
+        }
+        return new RoiSet(readZip(path));
+    }
+
+    /**
+     * Saves the set as a ROI zip or ROI store, chosen by the file extension.
+     * Zips hold one .roi entry per ROI, as written by the ROI Manager.
+     *
+     * @param path the path to the file, which is replaced if it exists.
+     * @throws IOException if the file cannot be written.
+     */
+    public void save(Path path) throws IOException {
+        if (RoiStore.getZipName(path.getFileName().toString()) != null) {
+            RoiStore.write(path, this.rois);
+        } else {
+            writeZip(path, this.rois);
+        }
+    }
+
+    public int size() {
+        return this.rois.length;
+    }
+
+    public boolean isEmpty() {
+        return this.rois.length == 0;
+    }
+
+    public Roi get(int index) {
+        return this.rois[index];
+    }
+
+    /**
+     * Gets the ROIs as an array.
+     *
+     * @return a new array holding the ROIs in order.
+     */
+    public Roi[] toArray() {
+        return this.rois.clone();
+    }
+
+    /**
+     * Gets the nucleus id of each ROI: the number it was named with by
+     * {@link #withIds()}, or otherwise its position in the set counting from 1.
+     *
+     * @return the ids, in ROI order.
+     */
+    public int[] getIds() {
+        int[] ids = new int[this.rois.length];
+        for (int i = 0; i < this.rois.length; i++) {
+            String name = this.rois[i].getName();
+            ids[i] = name != null && name.matches("\\d{1,9}") && Integer.parseInt(name) > 0
+                    ? Integer.parseInt(name)
+                    : i + 1;
+        }
+        return ids;
+    }
+
+    /**
+     * Gets a copy of the set with each ROI named after its nucleus id, so that
+     * the ids are kept by the sets filtered or partitioned from it when saved.
+     *
+     * @return the named copies of the ROIs, in order.
+     */
+    public RoiSet withIds() {
+        int[] ids = this.getIds();
+        Roi[] named = new Roi[this.rois.length];
+        for (int i = 0; i < this.rois.length; i++) {
+            named[i] = (Roi) this.rois[i].clone();
+            named[i].setName(String.format("%04d", ids[i]));
+        }
+        return new RoiSet(named);
+    }
+
+    /**
+     * Gets the ROIs that match a condition.
+     *
+     * @param predicate the condition on each ROI.
+     * @return the matching ROIs, in order.
+     */
+    public RoiSet filter(Predicate<Roi> predicate) {
+        return this.filterByIndex(i -> predicate.test(this.rois[i]));
+    }
+
+    /**
+     * Gets the ROIs whose index matches a condition, such as a measurement
+     * held in a parallel array.
+     *
+     * @param predicate the condition on each ROI index.
+     * @return the matching ROIs, in order.
+     */
+    public RoiSet filterByIndex(IntPredicate predicate) {
+        List<Roi> kept = new ArrayList<>();
+        for (int i = 0; i < this.rois.length; i++) {
+            if (predicate.test(i)) {
+                kept.add(this.rois[i]);
+            }
+        }
+        return kept.size() == this.rois.length ? this : of(kept);
+    }
+
+    /**
+     * Gets the ROIs at a set of indices.
+     *
+     * @param indices the indices, in the order the ROIs should be returned.
+     * @return the ROIs.
+     */
+    public RoiSet subset(int[] indices) {
+        Roi[] subset = new Roi[indices.length];
+        for (int j = 0; j < indices.length; j++) {
+            subset[j] = this.rois[indices[j]];
+        }
+        return new RoiSet(subset);
+    }
+
+    /**
+     * Gets the indices of the ROIs whose bounds overlap a region, such as a
+     * tile.
+     *
+     * @param region the region.
+     * @return the indices, in ROI order.
+     */
+    public int[] getOverlapping(Rectangle region) {
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < this.rois.length; i++) {
+            if (this.rois[i].getBounds().intersects(region)) {
+                indices.add(i);
+            }
+        }
+        return indices.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Splits the set into parts, keeping the order of the ROIs within each.
+     *
+     * @param parts    the part of each ROI, from 0 to numParts - 1.
+     * @param numParts the number of parts.
+     * @return the parts, some of which may be empty.
+     */
+    public RoiSet[] partition(int[] parts, int numParts) {
+        if (parts.length != this.rois.length) {
+            throw new IllegalArgumentException("Expected " + this.rois.length + " parts, got " + parts.length);
+        }
+        List<List<Roi>> lists = new ArrayList<>();
+        for (int p = 0; p < numParts; p++) {
+            lists.add(new ArrayList<>());
+        }
+        for (int i = 0; i < this.rois.length; i++) {
+            lists.get(parts[i]).add(this.rois[i]);
+        }
+        RoiSet[] sets = new RoiSet[numParts];
+        for (int p = 0; p < numParts; p++) {
+            sets[p] = of(lists.get(p));
+        }
+        return sets;
+    }
+
+    /**
+     * Gets the set in reverse order, so that earlier ROIs are drawn on top
+     * when rasterizing.
+     *
+     * @return the reversed set.
+     */
+    public RoiSet reverse() {
+        Roi[] reversed = new Roi[this.rois.length];
+        for (int i = 0; i < this.rois.length; i++) {
+            reversed[this.rois.length - 1 - i] = this.rois[i];
+        }
+        return new RoiSet(reversed);
+    }
+
+    /**
+     * Reads the .roi entries of a zip in order, as the ROI Manager does.
+     *
+     * @param path the path to the zip.
+     * @return the ROIs.
+     * @throws IOException if the zip cannot be read.
+     */
+    private static Roi[] readZip(Path path) throws IOException {
+        List<Roi> rois = new ArrayList<>();
+        try (ZipInputStream in = new ZipInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            byte[] buffer = new byte[8192];
+            for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                if (!entry.getName().endsWith(".roi")) {
+                    continue;
+                }
+                Roi roi = RoiDecoder.openFromByteArray(readEntry(in, buffer));
+                if (roi == null) {
+                    throw new IOException("Corrupt ROI " + entry.getName() + " in zip: " + path);
+                }
+                rois.add(roi);
+            }
+        }
+        return rois.toArray(new Roi[0]);
+    }
+
+    private static byte[] readEntry(InputStream in, byte[] buffer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int length;
+        while ((length = in.read(buffer)) > 0) {
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes each ROI to a zip entry named after the ROI, or its position in
+     * the set when unnamed, with duplicates numbered to keep entries unique.
+     *
+     * @param path the path to the zip.
+     * @param rois the ROIs.
+     * @throws IOException if the zip cannot be written.
+     */
+    private static void writeZip(Path path, Roi[] rois) throws IOException {
+        Set<String> names = new HashSet<>();
+        try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            for (int i = 0; i < rois.length; i++) {
+                String name = rois[i].getName() != null ? rois[i].getName() : String.format("%04d", i + 1);
+                String unique = name;
+                for (int n = 1; !names.add(unique); n++) {
+                    unique = name + "-" + n;
+                }
+                out.putNextEntry(new ZipEntry(unique + ".roi"));
+                out.write(RoiEncoder.saveAsByteArray(rois[i]));
+                out.closeEntry();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+package org.gdmn.imagej.utils;
+
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.io.RoiEncoder;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Compact single-file store for a set of ROIs, read and written in one
+ * sequential pass without the ROI Manager or zip compression.
+ *
+ * <p>
+ * The file holds a header, an index of offsets and the ROIs encoded back to
+ * back in ImageJ's .roi format, so every ROI type round-trips exactly as it
+ * would through a zip. Stores sit next to the zips they stand in for, named
+ * with a .rois extension (i.e. zip_roi.rois for zip_roi.zip).
+ * </p>
+ */
+public class RoiStore {
+    private static final byte[] MAGIC = "GDMNROIS".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final String EXTENSION = ".rois";
+
+    /**
+     * Gets the name of the store standing in for a zip.
+     *
+     * @param zipName the name of the zip file.
+     * @return the name of the store file.
+     */
+    public static String getStoreName(String zipName) {
+        return (zipName.endsWith(".zip") ? zipName.substring(0, zipName.length() - 4) : zipName) + EXTENSION;
+    }
+
+    /**
+     * Gets the name of the zip that a store stands in for.
+     *
+     * @param storeName the name of the store file.
+     * @return the name of the zip file, or null if the name is not a store.
+     */
+    public static String getZipName(String storeName) {
+        if (!storeName.endsWith(EXTENSION)) {
+            return null;
+        }
+        return storeName.substring(0, storeName.length() - EXTENSION.length()) + ".zip";
+    }
+
+    /**
+     * Reads a set of ROIs.
+     *
+     * @param path the path to the store.
+     * @return the ROIs in the order they were written.
+     * @throws IOException if the file cannot be read or is not a store.
+     */
+    public static Roi[] read(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        byte[] magic = new byte[MAGIC.length];
+        if (buffer.remaining() < MAGIC.length + 8) {
+            throw new IOException("Not a ROI store: " + path);
+        }
+        buffer.get(magic);
+        int version = buffer.getInt();
+        if (!Arrays.equals(magic, MAGIC) || version != VERSION) {
+            throw new IOException("Not a ROI store: " + path);
+        }
+
+        // Reading the index, then decoding each ROI from its slice of the data.
+        int count = buffer.getInt();
+        long[] offsets = new long[count + 1];
+        for (int i = 0; i <= count; i++) {
+            offsets[i] = buffer.getLong();
+        }
+        int dataStart = buffer.position();
+        Roi[] rois = new Roi[count];
+        for (int i = 0; i < count; i++) {
+            int start = (int) (dataStart + offsets[i]);
+            int end = (int) (dataStart + offsets[i + 1]);
+            if (start < dataStart || end > buffer.limit() || end < start) {
+                throw new IOException("Corrupt ROI store: " + path);
+            }
+            rois[i] = RoiDecoder.openFromByteArray(Arrays.copyOfRange(buffer.array(), start, end));
+            if (rois[i] == null) {
+                throw new IOException("Corrupt ROI " + (i + 1) + " in store: " + path);
+            }
+        }
+        return rois;
+    }
+
+    /**
+     * Writes a set of ROIs, replacing any existing store.
+     *
+     * @param path the path to the store.
+     * @param rois the ROIs.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void write(Path path, Roi[] rois) throws IOException {
+        byte[][] encoded = new byte[rois.length][];
+        long[] offsets = new long[rois.length + 1];
+        for (int i = 0; i < rois.length; i++) {
+            encoded[i] = RoiEncoder.saveAsByteArray(rois[i]);
+            offsets[i + 1] = offsets[i] + encoded[i].length;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rois.length);
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+            for (byte[] bytes : encoded) {
+                out.write(bytes);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,252 @@
+package org.gdmn.imagej.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Timing and throughput report of one run of a command, written as JSON next
+ * to the run log so that runs can be compared for regressions and hot spots.
+ *
+ * <p>
+ * The report holds the wall time, I/O and counts (i.e. nuclei) of each image
+ * and its stages, the totals of each file operation during the run, the
+ * images processed per minute and the peak heap. The peak heap is the sum of
+ * the peak usage of each heap pool, an upper bound on the heap in use at any
+ * one time. Runs overlapping with other runs or previews share the file
+ * operation totals and peak heap.
+ * </p>
+ */
+public class RunReport {
+    public static final String PROCESSED = "processed";
+    public static final String SKIPPED = "skipped";
+    public static final String FAILED = "failed";
+
+    private final String command;
+    private final int numWorkers;
+    private final LocalDateTime started = LocalDateTime.now();
+    private final long startTime = System.nanoTime();
+    private final Map<String, long[]> startOperations = Metrics.snapshot();
+    private final List<ImageResult> images = new ArrayList<>();
+    private long nanos;
+    private long peakHeap;
+    private Map<String, long[]> operations;
+
+    /** The measurements of one image. */
+    private static class ImageResult {
+        private final String path;
+        private final String status;
+        private final long nanos;
+        private final long bytesRead;
+        private final long bytesWritten;
+        private final Map<String, Long> stageTimes;
+        private final Map<String, Long> counts;
+
+        ImageResult(String path, String status, long nanos, long[] bytes, Map<String, Long> stageTimes,
+                Map<String, Long> counts) {
+            this.path = path;
+            this.status = status;
+            this.nanos = nanos;
+            this.bytesRead = bytes[0];
+            this.bytesWritten = bytes[1];
+            this.stageTimes = new LinkedHashMap<>(stageTimes);
+            this.counts = new LinkedHashMap<>(counts);
+        }
+    }
+
+    /**
+     * Starts a report, resetting the peak heap.
+     *
+     * @param command    the name of the command.
+     * @param numWorkers the number of worker threads.
+     */
+    public RunReport(String command, int numWorkers) {
+        this.command = command;
+        this.numWorkers = numWorkers;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    public LocalDateTime getStarted() {
+        return this.started;
+    }
+
+    /**
+     * Adds the measurements of an image. Images whose stages were not timed
+     * separately are reported as a single stage named after the command.
+     *
+     * @param context the context of the image.
+     * @param status  whether the image was processed, skipped or failed.
+     * @param nanos   the wall time of the image.
+     * @param bytes   the bytes read and written by the image.
+     */
+    public synchronized void addImage(ImageContext context, String status, long nanos, long[] bytes) {
+        Map<String, Long> stageTimes = context.getStageTimes();
+        if (stageTimes.isEmpty() && !status.equals(SKIPPED)) {
+            stageTimes = new LinkedHashMap<>();
+            stageTimes.put(this.command.substring(this.command.lastIndexOf('.') + 1), nanos);
+        }
+        this.images.add(new ImageResult(context.getBasePath(), status, nanos, bytes, stageTimes,
+                context.getCounts()));
+    }
+
+    /**
+     * Ends the report, recording the wall time, peak heap and file operations
+     * of the run.
+     */
+    public synchronized void finish() {
+        this.nanos = System.nanoTime() - this.startTime;
+        this.peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                this.peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        this.operations = new LinkedHashMap<>();
+        Metrics.snapshot().forEach((name, totals) -> {
+            long[] start = this.startOperations.getOrDefault(name, new long[3]);
+            if (totals[0] > start[0]) {
+                this.operations.put(name,
+                        new long[] { totals[0] - start[0], totals[1] - start[1], totals[2] - start[2] });
+            }
+        });
+    }
+
+    /**
+     * Gets the number of images not skipped (processed or failed) per minute
+     * of wall time.
+     *
+     * @return the throughput.
+     */
+    public synchronized double getImagesPerMinute() {
+        long numRun = this.images.stream().filter(image -> !image.status.equals(SKIPPED)).count();
+        return this.nanos > 0 ? numRun * 60e9 / this.nanos : 0;
+    }
+
+    /**
+     * Formats the report as JSON.
+     *
+     * @return the JSON text.
+     */
+    public synchronized String toJson() {
+        Map<String, Integer> statuses = new LinkedHashMap<>();
+        statuses.put(PROCESSED, 0);
+        statuses.put(SKIPPED, 0);
+        statuses.put(FAILED, 0);
+        Map<String, long[]> stages = new LinkedHashMap<>();
+        Map<String, Long> counts = new LinkedHashMap<>();
+        long bytesRead = 0;
+        long bytesWritten = 0;
+        for (ImageResult image : this.images) {
+            statuses.merge(image.status, 1, Integer::sum);
+            image.stageTimes.forEach((stage, time) -> {
+                long[] totals = stages.computeIfAbsent(stage, name -> new long[3]);
+                totals[0]++;
+                totals[1] += time;
+                totals[2] = Math.max(totals[2], time);
+            });
+            image.counts.forEach((name, value) -> counts.merge(name, value, Long::sum));
+            bytesRead += image.bytesRead;
+            bytesWritten += image.bytesWritten;
+        }
+
+        // Writing the summary.
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"command\": ").append(quote(this.command)).append(",\n");
+        json.append("  \"started\": ").append(quote(this.started.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME)))
+                .append(",\n");
+        json.append("  \"wallSeconds\": ").append(seconds(this.nanos)).append(",\n");
+        json.append("  \"workers\": ").append(this.numWorkers).append(",\n");
+        json.append("  \"images\": ").append(this.images.size()).append(",\n");
+        statuses.forEach((status, count) -> json.append("  \"").append(status).append("\": ").append(count)
+                .append(",\n"));
+        json.append("  \"imagesPerMinute\": ").append(format(this.getImagesPerMinute())).append(",\n");
+        json.append("  \"bytesRead\": ").append(bytesRead).append(",\n");
+        json.append("  \"bytesWritten\": ").append(bytesWritten).append(",\n");
+        json.append("  \"peakHeapBytes\": ").append(this.peakHeap).append(",\n");
+        json.append("  \"maxHeapBytes\": ").append(Runtime.getRuntime().maxMemory()).append(",\n");
+        json.append("  \"counts\": ").append(toObject(counts)).append(",\n");
+
+        // Writing the totals of each stage and file operation.
+        json.append("  \"stages\": {");
+        String separator = "\n";
+        for (Map.Entry<String, long[]> stage : stages.entrySet()) {
+            long[] totals = stage.getValue();
+            json.append(separator).append("    ").append(quote(stage.getKey())).append(": {\"images\": ")
+                    .append(totals[0]).append(", \"totalSeconds\": ").append(seconds(totals[1]))
+                    .append(", \"meanSeconds\": ").append(seconds(totals[1] / totals[0]))
+                    .append(", \"maxSeconds\": ").append(seconds(totals[2])).append("}");
+            separator = ",\n";
+        }
+        json.append(stages.isEmpty() ? "},\n" : "\n  },\n");
+        json.append("  \"fileOperations\": {");
+        separator = "\n";
+        for (Map.Entry<String, long[]> operation : this.operations.entrySet()) {
+            long[] totals = operation.getValue();
+            json.append(separator).append("    ").append(quote(operation.getKey())).append(": {\"calls\": ")
+                    .append(totals[0]).append(", \"bytes\": ").append(totals[1]).append(", \"seconds\": ")
+                    .append(seconds(totals[2])).append("}");
+            separator = ",\n";
+        }
+        json.append(this.operations.isEmpty() ? "},\n" : "\n  },\n");
+
+        // Writing each image.
+        json.append("  \"imageResults\": [");
+        separator = "\n";
+        for (ImageResult image : this.images) {
+            Map<String, Long> stageMillis = new LinkedHashMap<>();
+            image.stageTimes.forEach((stage, time) -> stageMillis.put(stage, time / 1000000));
+            json.append(separator).append("    {\"path\": ").append(quote(image.path)).append(", \"status\": ")
+                    .append(quote(image.status)).append(", \"seconds\": ").append(seconds(image.nanos))
+                    .append(", \"bytesRead\": ").append(image.bytesRead).append(", \"bytesWritten\": ")
+                    .append(image.bytesWritten).append(", \"stageMillis\": ").append(toObject(stageMillis))
+                    .append(", \"counts\": ").append(toObject(image.counts)).append("}");
+            separator = ",\n";
+        }
+        json.append(this.images.isEmpty() ? "]\n" : "\n  ]\n");
+        return json.append("}\n").toString();
+    }
+
+    private static String toObject(Map<String, Long> values) {
+        StringBuilder json = new StringBuilder("{");
+        String separator = "";
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            json.append(separator).append(quote(entry.getKey())).append(": ").append(entry.getValue());
+            separator = ", ";
+        }
+        return json.append("}").toString();
+    }
+
+    private static String seconds(long nanos) {
+        return format(nanos / 1e9);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append("\"").toString();
+    }
+
+}
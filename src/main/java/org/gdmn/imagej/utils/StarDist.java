@@ -0,0 +1,165 @@
+package org.gdmn.imagej.utils;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.plugin.filter.ThresholdToSelection;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+import org.scijava.convert.ConvertService;
+
+/**
+ * Runs StarDist 2D nuclei detection directly through the SciJava command API,
+ * without displaying the image or going through the macro interpreter and the
+ * shared ROI Manager.
+ *
+ * <p>
+ * StarDist returns a label image, which is traced back into one ROI per
+ * nucleus in label order. Detection itself runs one image at a time, as the
+ * model shares a single TensorFlow session, while the callers are free to
+ * post-process their ROIs concurrently.
+ * </p>
+ */
+public class StarDist {
+    private static final String COMMAND = "de.csbdresden.stardist.StarDist2D";
+    private static final Object LOCK = new Object();
+
+    private final CommandService commandService;
+    private final ConvertService convertService;
+    private final Map<String, Object> inputs = new LinkedHashMap<>();
+    private final int tileSize;
+
+    /**
+     * Prepares StarDist with the Versatile (fluorescent nuclei) model.
+     *
+     * @param commandService       the command service of the SciJava context.
+     * @param percentileLow        the bottom percentile for normalisation.
+     * @param percentileHigh       the top percentile for normalisation.
+     * @param probabilityThreshold the probability threshold.
+     * @param overlapThreshold     the non-maximum suppression threshold.
+     * @param tileSize             the largest tile edge in pixels.
+     */
+    public StarDist(CommandService commandService, double percentileLow, double percentileHigh,
+            double probabilityThreshold, double overlapThreshold, int tileSize) {
+        this.commandService = commandService;
+        this.convertService = commandService.getContext().service(ConvertService.class);
+        this.tileSize = Math.max(1, tileSize);
+        this.inputs.put("modelChoice", "Versatile (fluorescent nuclei)");
+        this.inputs.put("normalizeInput", true);
+        this.inputs.put("percentileBottom", percentileLow);
+        this.inputs.put("percentileTop", percentileHigh);
+        this.inputs.put("probThresh", probabilityThreshold);
+        this.inputs.put("nmsThresh", overlapThreshold);
+        this.inputs.put("outputType", "Label Image");
+        this.inputs.put("excludeBoundary", 2);
+        this.inputs.put("roiPosition", "Automatic");
+        this.inputs.put("verbose", false);
+        this.inputs.put("showCsbdeepProgress", false);
+        this.inputs.put("showProbAndDist", false);
+    }
+
+    /**
+     * Detects the nuclei in an image.
+     *
+     * @param imp the nuclear channel.
+     * @return the nuclear ROIs, in label order.
+     */
+    public RoiSet detect(ImagePlus imp) {
+        Map<String, Object> inputs = new LinkedHashMap<>(this.inputs);
+        inputs.put("input", imp);
+        inputs.put("nTiles", this.getNumTiles(imp));
+
+        // Running StarDist 2D on one image at a time.
+        ImagePlus labelImp;
+        synchronized (LOCK) {
+            try {
+                CommandModule module = this.commandService.run(COMMAND, false, inputs).get();
+                labelImp = this.convertService.convert(module.getOutput("label"), ImagePlus.class);
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IllegalStateException("StarDist failed: " + e.getMessage(), e);
+            }
+        }
+        if (labelImp == null) {
+            throw new IllegalStateException("StarDist returned no label image");
+        }
+        RoiSet rois = getRois(labelImp.getProcessor());
+        labelImp.close();
+        return rois;
+    }
+
+    /**
+     * Gets the number of tiles needed to keep each tile within the tile size.
+     *
+     * @param imp the image to be tiled.
+     * @return the number of tiles.
+     */
+    private int getNumTiles(ImagePlus imp) {
+        int tilesX = (imp.getWidth() + this.tileSize - 1) / this.tileSize;
+        int tilesY = (imp.getHeight() + this.tileSize - 1) / this.tileSize;
+        return tilesX * tilesY;
+    }
+
+    /**
+     * Traces each label of a label image into a ROI.
+     *
+     * @param labelIp the label image, with 0 as background.
+     * @return the ROIs in label order, skipping unused labels.
+     */
+    private static RoiSet getRois(ImageProcessor labelIp) {
+        int width = labelIp.getWidth();
+        int height = labelIp.getHeight();
+
+        // Finding the bounds of each label in one pass.
+        int numLabels = (int) labelIp.getStatistics().max;
+        int[] minX = new int[numLabels + 1];
+        int[] minY = new int[numLabels + 1];
+        int[] maxX = new int[numLabels + 1];
+        int[] maxY = new int[numLabels + 1];
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(minY, Integer.MAX_VALUE);
+        Arrays.fill(maxX, -1);
+        Arrays.fill(maxY, -1);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int label = (int) labelIp.getf(y * width + x);
+                if (label > 0) {
+                    minX[label] = Math.min(minX[label], x);
+                    minY[label] = Math.min(minY[label], y);
+                    maxX[label] = Math.max(maxX[label], x);
+                    maxY[label] = Math.max(maxY[label], y);
+                }
+            }
+        }
+
+        // Tracing each label within its bounding box.
+        List<Roi> rois = new ArrayList<>();
+        for (int label = 1; label <= numLabels; label++) {
+            if (maxX[label] < 0) {
+                continue;
+            }
+            int boxWidth = maxX[label] - minX[label] + 1;
+            int boxHeight = maxY[label] - minY[label] + 1;
+            ByteProcessor mask = new ByteProcessor(boxWidth, boxHeight);
+            for (int y = 0; y < boxHeight; y++) {
+                for (int x = 0; x < boxWidth; x++) {
+                    if ((int) labelIp.getf((minY[label] + y) * width + minX[label] + x) == label) {
+                        mask.set(x, y, 255);
+                    }
+                }
+            }
+            mask.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+            Roi roi = ThresholdToSelection.run(new ImagePlus("", mask));
+            roi.setLocation(roi.getXBase() + minX[label], roi.getYBase() + minY[label]);
+            rois.add(roi);
+        }
+        return RoiSet.of(rois);
+    }
+
+}
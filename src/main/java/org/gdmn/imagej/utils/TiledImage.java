@@ -0,0 +1,492 @@
+package org.gdmn.imagej.utils;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.RoiDecoder;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.awt.image.IndexColorModel;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Reads and writes rectangular tiles of uncompressed grayscale TIFF images
+ * directly from disk, so that images larger than the heap can be processed
+ * tile by tile.
+ *
+ * <p>
+ * Images are read from the planes of uncompressed 8, 16 or 32-bit TIFFs (such
+ * as those saved by ImageJ), and written as single-plane uncompressed TIFFs
+ * that ImageJ opens with their calibration and LUT.
+ * </p>
+ *
+ * <p>
+ * Pixels are read with positional reads on a FileChannel: 8-bit rows go
+ * straight into the pixel array, while 16 and 32-bit rows are read in bulk
+ * chunks and converted, so whole planes can also be opened without going
+ * through ImageJ's stream decoder.
+ * </p>
+ */
+public class TiledImage implements Closeable {
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final long[] planeOffsets;
+    private final ByteOrder byteOrder;
+    private final Calibration calibration;
+    private FileInfo info;
+    private double[] displayRanges;
+
+    private TiledImage(FileChannel channel, int width, int height, int bitDepth, long[] planeOffsets,
+            ByteOrder byteOrder, Calibration calibration) {
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.planeOffsets = planeOffsets;
+        this.byteOrder = byteOrder;
+        this.calibration = calibration;
+    }
+
+    /**
+     * Opens an existing TIFF for reading tiles.
+     *
+     * @param path the path to the TIFF.
+     * @return the tiled image.
+     * @throws IOException if the file cannot be read or is not an uncompressed
+     *                     grayscale TIFF.
+     */
+    public static TiledImage open(String path) throws IOException {
+        File file = new File(path);
+        FileInfo[] infos = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+        if (infos == null || infos.length == 0) {
+            throw new IOException("Not a TIFF: " + path);
+        }
+        FileInfo info = infos[0];
+        int bitDepth;
+        switch (info.fileType) {
+            case FileInfo.GRAY8:
+                bitDepth = 8;
+                break;
+            case FileInfo.GRAY16_UNSIGNED:
+                bitDepth = 16;
+                break;
+            case FileInfo.GRAY32_FLOAT:
+                bitDepth = 32;
+                break;
+            default:
+                throw new IOException("Tiled processing needs 8, 16 or 32-bit grayscale images: " + path);
+        }
+        long planeSize = (long) info.width * info.height * info.getBytesPerPixel();
+
+        // Getting the offset of each plane, either from a single ImageJ entry or one entry per page.
+        long[] planeOffsets;
+        if (infos.length == 1) {
+            planeOffsets = new long[Math.max(1, info.nImages)];
+            for (int p = 0; p < planeOffsets.length; p++) {
+                planeOffsets[p] = info.getOffset() + p * (planeSize + info.getGap());
+            }
+        } else {
+            planeOffsets = new long[infos.length];
+            for (int p = 0; p < infos.length; p++) {
+                planeOffsets[p] = infos[p].getOffset();
+            }
+        }
+        for (FileInfo plane : infos) {
+            if (plane.compression > FileInfo.COMPRESSION_NONE || !isContiguous(plane)) {
+                throw new IOException("Tiled processing needs uncompressed, contiguous TIFFs: " + path);
+            }
+        }
+
+        // Getting the calibration, with the unit stored in the ImageJ description.
+        Calibration calibration = new Calibration();
+        Properties properties = new FileOpener(info).decodeDescriptionString(info);
+        String unit = properties == null ? info.unit : properties.getProperty("unit", info.unit);
+        if (unit != null && !unit.trim().isEmpty() && info.pixelWidth > 0 && info.pixelHeight > 0) {
+            calibration.setUnit(unit);
+            calibration.pixelWidth = info.pixelWidth;
+            calibration.pixelHeight = info.pixelHeight;
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        ByteOrder byteOrder = info.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        TiledImage image = new TiledImage(channel, info.width, info.height, bitDepth, planeOffsets, byteOrder,
+                calibration);
+        image.info = info;
+
+        // Getting the display ranges, per channel for composites or shared otherwise.
+        if (properties != null) {
+            String ranges = properties.getProperty("ranges");
+            String min = properties.getProperty("min");
+            String max = properties.getProperty("max");
+            try {
+                if (ranges != null && properties.getProperty("mode") != null) {
+                    String[] values = ranges.split(",");
+                    image.displayRanges = new double[values.length];
+                    for (int i = 0; i < values.length; i++) {
+                        image.displayRanges[i] = Double.parseDouble(values[i]);
+                    }
+                } else if (min != null && max != null) {
+                    image.displayRanges = new double[] { Double.parseDouble(min), Double.parseDouble(max) };
+                }
+            } catch (NumberFormatException e) {
+                image.displayRanges = null;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Opens a whole single-plane image, restoring the calibration, display
+     * range, LUT and selection saved by ImageJ.
+     *
+     * @param path the path to the TIFF.
+     * @return the image.
+     * @throws IOException if the file cannot be read or is not an uncompressed
+     *                     single-plane grayscale TIFF.
+     */
+    public static ImagePlus openImage(String path) throws IOException {
+        try (TiledImage image = open(path)) {
+            FileInfo info = image.info;
+            if (image.getNumPlanes() != 1 || info.whiteIsZero || info.overlay != null) {
+                throw new IOException("Not a plain single-plane image: " + path);
+            }
+            ImageProcessor ip = image.readPixels(0, new Rectangle(image.width, image.height));
+            if (info.lutSize > 0) {
+                ip.setColorModel(new LUT(8, info.lutSize, info.reds, info.greens, info.blues));
+            }
+            ip.resetMinAndMax();
+            double[] range = image.getDisplayRange(0);
+            if (range != null) {
+                ip.setMinAndMax(range[0], range[1]);
+            }
+            ImagePlus imp = new ImagePlus(new File(path).getName(), ip);
+            imp.setCalibration(image.calibration);
+            if (info.roi != null) {
+                imp.setRoi(RoiDecoder.openFromByteArray(info.roi));
+            }
+            return imp;
+        }
+    }
+
+    /**
+     * Creates a new single-plane TIFF for writing tiles. Pixels that are never
+     * written are left at 0.
+     *
+     * @param path        the path to the TIFF.
+     * @param width       the width of the image.
+     * @param height      the height of the image.
+     * @param bitDepth    8, 16 or 32.
+     * @param calibration the spatial calibration to record.
+     * @param lut         the LUT to record for 8-bit images, or null.
+     * @return the tiled image.
+     * @throws IOException if the file cannot be written.
+     */
+    public static TiledImage create(String path, int width, int height, int bitDepth, Calibration calibration,
+            IndexColorModel lut) throws IOException {
+        int bytesPerPixel = bitDepth / 8;
+        long imageSize = (long) width * height * bytesPerPixel;
+        if (imageSize > 0xffffffffL) {
+            throw new IOException("Image too large for a single TIFF strip: " + path);
+        }
+        boolean hasLut = lut != null && bitDepth == 8;
+        boolean hasScale = calibration.scaled();
+        byte[] description = ("ImageJ=1.53f\n" + (hasScale ? "unit=" + calibration.getUnit() + "\n" : ""))
+                .getBytes(StandardCharsets.US_ASCII);
+
+        // Laying out the header, directory and extra values before the pixel data.
+        int numEntries = 11 + (hasScale ? 3 : 0) + (hasLut ? 1 : 0) + (bitDepth == 32 ? 1 : 0);
+        int directorySize = 2 + numEntries * 12 + 4;
+        int descriptionOffset = 8 + directorySize;
+        int resolutionOffset = descriptionOffset + description.length + 1;
+        int lutOffset = resolutionOffset + (hasScale ? 16 : 0);
+        int dataOffset = lutOffset + (hasLut ? 3 * 256 * 2 : 0);
+        dataOffset = (dataOffset + 15) / 16 * 16;
+
+        ByteBuffer header = ByteBuffer.allocate(dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        header.putShort((short) numEntries);
+        putEntry(header, TiffDecoder.NEW_SUBFILE_TYPE, 4, 1, 0);
+        putEntry(header, TiffDecoder.IMAGE_WIDTH, 4, 1, width);
+        putEntry(header, TiffDecoder.IMAGE_LENGTH, 4, 1, height);
+        putEntry(header, TiffDecoder.BITS_PER_SAMPLE, 3, 1, bitDepth);
+        putEntry(header, TiffDecoder.COMPRESSION, 3, 1, 1);
+        putEntry(header, TiffDecoder.PHOTO_INTERP, 3, 1, hasLut ? 3 : 1);
+        putEntry(header, TiffDecoder.IMAGE_DESCRIPTION, 2, description.length + 1, descriptionOffset);
+        putEntry(header, TiffDecoder.STRIP_OFFSETS, 4, 1, dataOffset);
+        putEntry(header, TiffDecoder.SAMPLES_PER_PIXEL, 3, 1, 1);
+        putEntry(header, TiffDecoder.ROWS_PER_STRIP, 4, 1, height);
+        putEntry(header, TiffDecoder.STRIP_BYTE_COUNT, 4, 1, (int) imageSize);
+        if (hasScale) {
+            putEntry(header, TiffDecoder.X_RESOLUTION, 5, 1, resolutionOffset);
+            putEntry(header, TiffDecoder.Y_RESOLUTION, 5, 1, resolutionOffset + 8);
+            putEntry(header, TiffDecoder.RESOLUTION_UNIT, 3, 1, 1);
+        }
+        if (hasLut) {
+            putEntry(header, TiffDecoder.COLOR_MAP, 3, 3 * 256, lutOffset);
+        }
+        if (bitDepth == 32) {
+            putEntry(header, TiffDecoder.SAMPLE_FORMAT, 3, 1, 3);
+        }
+        header.putInt(0);
+        header.put(description).put((byte) 0);
+        if (hasScale) {
+            header.putInt(1000000).putInt((int) Math.round(calibration.pixelWidth * 1000000));
+            header.putInt(1000000).putInt((int) Math.round(calibration.pixelHeight * 1000000));
+        }
+        if (hasLut) {
+            byte[][] colours = { new byte[256], new byte[256], new byte[256] };
+            lut.getReds(colours[0]);
+            lut.getGreens(colours[1]);
+            lut.getBlues(colours[2]);
+            for (byte[] colour : colours) {
+                for (int i = 0; i < 256; i++) {
+                    header.putShort((short) ((colour[i] & 0xff) * 257));
+                }
+            }
+        }
+
+        // Writing the header and sizing the file, leaving unwritten pixels as 0.
+        FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header.rewind();
+        channel.write(header, 0);
+        channel.write(ByteBuffer.allocate(1), dataOffset + imageSize - 1);
+        return new TiledImage(channel, width, height, bitDepth, new long[] { dataOffset }, ByteOrder.LITTLE_ENDIAN,
+                calibration);
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+
+    public int getHeight() {
+        return this.height;
+    }
+
+    public int getBitDepth() {
+        return this.bitDepth;
+    }
+
+    public int getNumPlanes() {
+        return this.planeOffsets.length;
+    }
+
+    public Calibration getCalibration() {
+        return this.calibration;
+    }
+
+    /**
+     * Gets the display range that ImageJ would use for a plane when opening
+     * the image, as recorded in its description.
+     *
+     * @param plane the index of the plane (i.e. the channel).
+     * @return the minimum and maximum, or null if none was recorded.
+     */
+    public double[] getDisplayRange(int plane) {
+        if (this.displayRanges == null) {
+            return null;
+        } else if (this.displayRanges.length == 2) {
+            return this.displayRanges;
+        } else if (2 * plane + 1 < this.displayRanges.length) {
+            return new double[] { this.displayRanges[2 * plane], this.displayRanges[2 * plane + 1] };
+        }
+        return null;
+    }
+
+    /**
+     * Splits the image into tiles of at most a given size.
+     *
+     * @param tileSize the largest tile edge in pixels.
+     * @return the tiles, in row-major order.
+     */
+    public List<Rectangle> getTiles(int tileSize) {
+        List<Rectangle> tiles = new ArrayList<>();
+        for (int y = 0; y < this.height; y += tileSize) {
+            for (int x = 0; x < this.width; x += tileSize) {
+                tiles.add(new Rectangle(x, y, Math.min(tileSize, this.width - x), Math.min(tileSize, this.height - y)));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Grows a tile by a halo on each side, clipped to the image.
+     *
+     * @param tile the tile.
+     * @param halo the halo in pixels.
+     * @return the grown tile.
+     */
+    public Rectangle expand(Rectangle tile, int halo) {
+        Rectangle expanded = new Rectangle(tile);
+        expanded.grow(halo, halo);
+        return expanded.intersection(new Rectangle(0, 0, this.width, this.height));
+    }
+
+    /**
+     * Reads a tile of one plane.
+     *
+     * @param plane the index of the plane (i.e. the channel).
+     * @param tile  the tile, within the image.
+     * @return a new processor holding the tile.
+     * @throws IOException if the file cannot be read.
+     */
+    public ImageProcessor read(int plane, Rectangle tile) throws IOException {
+        long startTime = System.nanoTime();
+        ImageProcessor ip = this.readPixels(plane, tile);
+        Metrics.recordRead("readTile", (long) tile.width * tile.height * (this.bitDepth / 8), startTime);
+        return ip;
+    }
+
+    private ImageProcessor readPixels(int plane, Rectangle tile) throws IOException {
+        ImageProcessor ip = this.createProcessor(tile.width, tile.height);
+        if (tile.x == 0 && tile.width == this.width) {
+            // Reading contiguous rows in one go.
+            this.read(this.getPosition(plane, 0, tile.y), ip.getPixels(), 0, tile.width * tile.height);
+        } else {
+            for (int y = 0; y < tile.height; y++) {
+                this.read(this.getPosition(plane, tile.x, tile.y + y), ip.getPixels(), y * tile.width, tile.width);
+            }
+        }
+        return ip;
+    }
+
+    /**
+     * Writes part of a processor into the image.
+     *
+     * @param ip     the processor holding the pixels.
+     * @param source the region of the processor to write.
+     * @param x      the x-coordinate in the image to write to.
+     * @param y      the y-coordinate in the image to write to.
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(ImageProcessor ip, Rectangle source, int x, int y) throws IOException {
+        long startTime = System.nanoTime();
+        int bytesPerPixel = this.bitDepth / 8;
+        ByteBuffer row = ByteBuffer.allocate(source.width * bytesPerPixel).order(this.byteOrder);
+        Object pixels = ip.getPixels();
+        for (int j = 0; j < source.height; j++) {
+            int offset = (source.y + j) * ip.getWidth() + source.x;
+            row.clear();
+            if (this.bitDepth == 8) {
+                row.put((byte[]) pixels, offset, source.width);
+            } else if (this.bitDepth == 16) {
+                row.asShortBuffer().put((short[]) pixels, offset, source.width);
+            } else {
+                row.asFloatBuffer().put((float[]) pixels, offset, source.width);
+            }
+            row.rewind();
+            long position = this.planeOffsets[0] + ((long) (y + j) * this.width + x) * bytesPerPixel;
+            while (row.hasRemaining()) {
+                this.channel.write(row, position + row.position());
+            }
+        }
+        Metrics.recordWrite("writeTile", (long) source.width * source.height * bytesPerPixel, startTime);
+    }
+
+    private long getPosition(int plane, int x, int y) {
+        return this.planeOffsets[plane] + ((long) y * this.width + x) * (this.bitDepth / 8);
+    }
+
+    /**
+     * Reads consecutive pixels from the file into a pixel array.
+     *
+     * @param position the file position of the first pixel.
+     * @param pixels   the pixel array of this image's type.
+     * @param offset   the index of the first pixel in the array.
+     * @param length   the number of pixels to read.
+     * @throws IOException if the file cannot be read.
+     */
+    private void read(long position, Object pixels, int offset, int length) throws IOException {
+        int bytesPerPixel = this.bitDepth / 8;
+        if (this.bitDepth == 8) {
+            this.readFully(ByteBuffer.wrap((byte[]) pixels, offset, length), position);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(length, CHUNK_SIZE) * bytesPerPixel).order(this.byteOrder);
+        for (int done = 0; done < length;) {
+            int count = Math.min(length - done, CHUNK_SIZE);
+            buffer.clear();
+            buffer.limit(count * bytesPerPixel);
+            this.readFully(buffer, position + (long) done * bytesPerPixel);
+            buffer.flip();
+            if (this.bitDepth == 16) {
+                buffer.asShortBuffer().get((short[]) pixels, offset + done, count);
+            } else {
+                buffer.asFloatBuffer().get((float[]) pixels, offset + done, count);
+            }
+            done += count;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    /**
+     * Creates an empty processor of this image's type.
+     *
+     * @param width  the width of the processor.
+     * @param height the height of the processor.
+     * @return the processor.
+     */
+    public ImageProcessor createProcessor(int width, int height) {
+        if (this.bitDepth == 8) {
+            return new ByteProcessor(width, height);
+        } else if (this.bitDepth == 16) {
+            return new ShortProcessor(width, height);
+        }
+        return new FloatProcessor(width, height);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    private static boolean isContiguous(FileInfo info) {
+        if (info.stripOffsets == null || info.stripOffsets.length <= 1) {
+            return true;
+        }
+        long stripSize = (long) info.width * info.rowsPerStrip * info.getBytesPerPixel();
+        for (int s = 1; s < info.stripOffsets.length; s++) {
+            if ((info.stripOffsets[s] & 0xffffffffL) != (info.stripOffsets[s - 1] & 0xffffffffL) + stripSize) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void putEntry(ByteBuffer buffer, int tag, int type, int count, int value) {
+        buffer.putShort((short) tag).putShort((short) type).putInt(count);
+        if (type == 3 && count == 1) {
+            buffer.putShort((short) value).putShort((short) 0);
+        } else {
+            buffer.putInt(value);
+        }
+    }
+
+}